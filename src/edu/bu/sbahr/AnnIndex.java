@@ -0,0 +1,550 @@
+// This class is an approximate nearest neighbor index over the normalized
+// tf-idf document vectors, so the documents closest to a query by cosine
+// similarity are found without scoring every document.
+//
+// It uses random projection LSH: each of several tables hashes a vector to
+// the signs of its projections on a few random hyperplanes, so vectors at a
+// small angle tend to share a code. A lookup gathers the documents sharing the
+// query's code in every table, plus the codes one bit away for as many bits as
+// asked for (more probes trade latency for recall), and ranks them by their
+// exact cosine. The hyperplanes are never stored: the sign of each term on a
+// plane is derived from a hash of the two.
+//
+// The index is saved with the document vectors, the document names, and the
+// terms with their idf, so a saved index can look up a document by name or a
+// query of words on its own. The settings the documents were read with (the
+// tokenizer, n-grams and feature hashing) are saved too, so a query is read
+// the same way whatever the settings of the JVM querying. The vectors are
+// memory mapped when it is loaded rather than read.
+
+package edu.bu.sbahr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+public class AnnIndex {
+
+	/** Marks an index file */
+	private static final int MAGIC = 0x5444414e;
+	/** Bytes of the file header */
+	private static final int HEADER_BYTES = 52;
+
+	/** Number of documents and terms */
+	private int numDocs;
+	private int numTerms;
+	/** Number of tables, and of bits (hyperplanes) in each */
+	private int tables;
+	private int bits;
+	/** Seed of the hyperplanes */
+	private long seed;
+	private int[] planeSeeds;
+	/** The documents of each table sorted by code, and their codes */
+	private IntBuffer[] codes;
+	private IntBuffer[] docs;
+	/** The document vectors, as in DocumentVectors */
+	private IntBuffer docStart;
+	private IntBuffer terms;
+	private FloatBuffer weights;
+	/** How the documents were read: tokenizer, n-grams and feature hashing */
+	private boolean unicode;
+	private boolean stripAccents;
+	private int ngrams;
+	private int hashBits;
+	/** Names of the documents, and the terms with their idf */
+	private String[] documentNames;
+	private String[] termNames;
+	private double[] idf;
+	/** Document and term numbers by name, made when first needed */
+	private Map<String, Integer> documentIds;
+	private Map<String, Integer> termIds;
+
+	/**
+	 * Construct an index over the given storage.
+	 */
+	private AnnIndex(int numDocs, int numTerms, int tables, int bits, long seed) {
+		this.numDocs = numDocs;
+		this.numTerms = numTerms;
+		this.tables = tables;
+		this.bits = bits;
+		this.seed = seed;
+		this.codes = new IntBuffer[tables];
+		this.docs = new IntBuffer[tables];
+		this.planeSeeds = new int[tables * bits];
+		int s = (int) (seed ^ (seed >>> 32));
+		for (int p = 0; p < planeSeeds.length; p++) {
+			s = FeatureHash.mix(s + 0x9e3779b9);
+			planeSeeds[p] = s;
+		}
+	}
+
+	/**
+	 * Builds the index of the document vectors, read with the current
+	 * settings.
+	 *
+	 * @param vectors - the normalized document vectors
+	 * @param tables - the number of hash tables
+	 * @param bits - the number of bits of each table's codes, at most 31
+	 * @param seed - the seed of the hyperplanes
+	 * @param documentNames - the name of each document
+	 * @param termNames - the term of each row of the vectors
+	 * @param idf - the inverse document frequency of each term
+	 *
+	 * @return The index.
+	 */
+	public static AnnIndex build(DocumentVectors vectors, int tables, int bits, long seed, String[] documentNames,
+					String[] termNames, double[] idf) {
+		AnnIndex index = new AnnIndex(vectors.numDocs, vectors.numTerms, tables, Math.min(bits, 31), seed);
+		index.unicode = Settings.unicodeTokens;
+		index.stripAccents = Settings.stripAccents;
+		index.ngrams = Settings.ngrams;
+		index.hashBits = Settings.hashBits;
+		index.documentNames = documentNames;
+		index.termNames = termNames;
+		index.idf = idf;
+		index.docStart = IntBuffer.wrap(vectors.docStart);
+		index.terms = IntBuffer.wrap(vectors.terms);
+		index.weights = FloatBuffer.wrap(vectors.weights);
+
+		// sort each table's documents by code, packed as code << 32 | doc
+		long[] sorted = new long[vectors.numDocs];
+		for (int t = 0; t < tables; t++) {
+			for (int d = 0; d < vectors.numDocs; d++) {
+				int code = index.code(t, index.terms, index.weights, vectors.docStart[d], vectors.docStart[d + 1]);
+				sorted[d] = (long) code << 32 | d;
+			}
+			Arrays.sort(sorted);
+			int[] c = new int[vectors.numDocs];
+			int[] ds = new int[vectors.numDocs];
+			for (int i = 0; i < sorted.length; i++) {
+				c[i] = (int) (sorted[i] >>> 32);
+				ds[i] = (int) sorted[i];
+			}
+			index.codes[t] = IntBuffer.wrap(c);
+			index.docs[t] = IntBuffer.wrap(ds);
+		}
+		return index;
+	}
+
+	/**
+	 * Finds the documents closest to a document of the index.
+	 *
+	 * @param d - the document
+	 * @param k - the number of neighbors
+	 * @param probes - the number of codes one bit away probed in each table
+	 *
+	 * @return The neighbors, closest first, not including the document.
+	 */
+	public Neighbor[] nearest(int d, int k, int probes) {
+		int from = docStart.get(d);
+		int to = docStart.get(d + 1);
+		int[] qTerms = new int[to - from];
+		float[] qWeights = new float[to - from];
+		for (int i = from; i < to; i++) {
+			qTerms[i - from] = terms.get(i);
+			qWeights[i - from] = weights.get(i);
+		}
+		return nearest(qTerms, qWeights, k, probes, d);
+	}
+
+	/**
+	 * Finds the documents closest to a query of words. The words are split,
+	 * stemmed, made into n-grams or hashed, and weighted by tf-idf as the
+	 * documents were; terms that aren't in the index are left out.
+	 *
+	 * @param query - the words
+	 * @param k - the number of neighbors
+	 * @param probes - the number of codes one bit away probed in each table
+	 *
+	 * @return The neighbors, closest first.
+	 */
+	public Neighbor[] nearest(String query, int k, int probes) {
+		if (termIds == null)
+			termIds = ids(termNames);
+		Tokenizer tokenizer = new Tokenizer(unicode, stripAccents);
+		Stemmer stemmer = new Stemmer();
+		IntCountMap counts = new IntCountMap(16);
+		// the previous stems (or their hashes), most recent first, for n-grams
+		int window = Math.max(ngrams - 1, 0);
+		String[] prevStems = new String[window];
+		int[] prevHashes = new int[window];
+		int seen = 0;
+		for (String word : tokenizer.split(query)) {
+			if (TDGenerator.isStopWord(word))
+				continue;
+			char[] w = word.toCharArray();
+			stemmer.add(w, w.length);
+			stemmer.stem();
+			if (hashBits > 0) {
+				int hash = FeatureHash.hash(stemmer.getResultBuffer(), stemmer.getResultLength());
+				count(counts, "#" + FeatureHash.bucket(hash, hashBits));
+				int gram = hash;
+				for (int n = 0; n < window && n < seen; n++) {
+					gram = FeatureHash.combine(prevHashes[n], gram);
+					count(counts, "#" + FeatureHash.bucket(gram, hashBits));
+				}
+				if (window > 0) {
+					System.arraycopy(prevHashes, 0, prevHashes, 1, window - 1);
+					prevHashes[0] = hash;
+				}
+			}
+			else {
+				String stem = stemmer.toString();
+				count(counts, stem);
+				String gram = stem;
+				for (int n = 0; n < window && n < seen; n++) {
+					gram = prevStems[n] + " " + gram;
+					count(counts, gram);
+				}
+				if (window > 0) {
+					System.arraycopy(prevStems, 0, prevStems, 1, window - 1);
+					prevStems[0] = stem;
+				}
+			}
+			seen++;
+		}
+
+		int[] qTerms = new int[counts.size()];
+		int n = 0;
+		for (int slot = 0; slot < counts.capacity(); slot++) {
+			if (counts.keyAt(slot) >= 0)
+				qTerms[n++] = counts.keyAt(slot);
+		}
+		Arrays.sort(qTerms);
+		float[] qWeights = new float[n];
+		double norm = 0;
+		for (int i = 0; i < n; i++) {
+			double w = counts.get(qTerms[i]) * idf[qTerms[i]];
+			qWeights[i] = (float) w;
+			norm += w * w;
+		}
+		if (norm == 0)
+			return new Neighbor[0];
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < n; i++) {
+			qWeights[i] /= norm;
+		}
+		return nearest(qTerms, qWeights, k, probes, -1);
+	}
+
+	/**
+	 * Counts a term of a query, if it is a term of the index.
+	 */
+	private void count(IntCountMap counts, String term) {
+		Integer t = termIds.get(term);
+		if (t != null)
+			counts.add(t, 1);
+	}
+
+	/**
+	 * Finds the documents closest to a query vector.
+	 *
+	 * @param qTerms - the terms of the query, in increasing order
+	 * @param qWeights - the normalized weights of the terms
+	 * @param k - the number of neighbors
+	 * @param probes - the number of codes one bit away probed in each table
+	 * @param exclude - a document left out of the results, -1 for none
+	 *
+	 * @return The neighbors, closest first.
+	 */
+	public Neighbor[] nearest(int[] qTerms, float[] qWeights, int k, int probes, int exclude) {
+		IntBuffer qt = IntBuffer.wrap(qTerms);
+		FloatBuffer qw = FloatBuffer.wrap(qWeights);
+		IntCountMap seen = new IntCountMap(64);
+		if (exclude >= 0)
+			seen.add(exclude, 1);
+
+		// the k best so far, worst on top
+		PriorityQueue<Neighbor> best = new PriorityQueue<Neighbor>();
+		for (int t = 0; t < tables; t++) {
+			int code = code(t, qt, qw, 0, qTerms.length);
+			for (int p = -1; p < Math.min(probes, bits); p++) {
+				int probe = p < 0 ? code : code ^ (1 << p);
+				int i = lowerBound(codes[t], probe);
+				for (; i < numDocs && codes[t].get(i) == probe; i++) {
+					int d = docs[t].get(i);
+					if (seen.get(d) != 0)
+						continue;
+					seen.add(d, 1);
+
+					Neighbor n = new Neighbor(d, cosine(qTerms, qWeights, d));
+					if (best.size() < k) {
+						best.add(n);
+					}
+					else if (n.compareTo(best.peek()) > 0) {
+						best.poll();
+						best.add(n);
+					}
+				}
+			}
+		}
+
+		Neighbor[] result = new Neighbor[best.size()];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = best.poll();
+		}
+		return result;
+	}
+
+	/**
+	 * Saves the index.
+	 *
+	 * @param f - the index file
+	 * @throws IOException - error writing
+	 */
+	public void save(File f) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(numDocs);
+		out.writeInt(numTerms);
+		out.writeInt(tables);
+		out.writeInt(bits);
+		out.writeLong(seed);
+		out.writeInt(terms.limit());
+		// where the names start, after the vectors
+		out.writeLong(HEADER_BYTES + 8L * tables * numDocs + 4L * (numDocs + 1) + 8L * terms.limit());
+		out.writeInt((unicode ? 1 : 0) | (stripAccents ? 2 : 0));
+		out.writeInt(ngrams);
+		out.writeInt(hashBits);
+		for (int t = 0; t < tables; t++) {
+			writeInts(out, codes[t]);
+			writeInts(out, docs[t]);
+		}
+		writeInts(out, docStart);
+		writeInts(out, terms);
+		for (int i = 0; i < weights.limit(); i++) {
+			out.writeFloat(weights.get(i));
+		}
+		for (String name : documentNames) {
+			out.writeUTF(name);
+		}
+		for (int t = 0; t < numTerms; t++) {
+			out.writeUTF(termNames[t]);
+			out.writeDouble(idf[t]);
+		}
+		out.close();
+	}
+
+	/**
+	 * Loads a saved index by memory mapping it.
+	 *
+	 * @param f - the index file
+	 *
+	 * @return The index.
+	 * @throws IOException - error reading
+	 */
+	public static AnnIndex load(File f) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(f, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			DataInputStream header = new DataInputStream(Channels.newInputStream(channel));
+			if (header.readInt() != MAGIC)
+				throw new IOException(f + " is not an index file");
+			int numDocs = header.readInt();
+			int numTerms = header.readInt();
+			int tables = header.readInt();
+			int bits = header.readInt();
+			long seed = header.readLong();
+			int nonZeros = header.readInt();
+			long namesOffset = header.readLong();
+			int tokenizer = header.readInt();
+
+			AnnIndex index = new AnnIndex(numDocs, numTerms, tables, bits, seed);
+			index.unicode = (tokenizer & 1) != 0;
+			index.stripAccents = (tokenizer & 2) != 0;
+			index.ngrams = header.readInt();
+			index.hashBits = header.readInt();
+			long offset = HEADER_BYTES;
+			for (int t = 0; t < tables; t++) {
+				index.codes[t] = map(channel, offset, numDocs).asIntBuffer();
+				offset += 4L * numDocs;
+				index.docs[t] = map(channel, offset, numDocs).asIntBuffer();
+				offset += 4L * numDocs;
+			}
+			index.docStart = map(channel, offset, numDocs + 1).asIntBuffer();
+			offset += 4L * (numDocs + 1);
+			index.terms = map(channel, offset, nonZeros).asIntBuffer();
+			offset += 4L * nonZeros;
+			index.weights = map(channel, offset, nonZeros).asFloatBuffer();
+
+			// the names are needed as strings anyway, so they're read
+			channel.position(namesOffset);
+			DataInputStream names = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+							1 << 16));
+			index.documentNames = new String[numDocs];
+			for (int d = 0; d < numDocs; d++) {
+				index.documentNames[d] = names.readUTF();
+			}
+			index.termNames = new String[numTerms];
+			index.idf = new double[numTerms];
+			for (int t = 0; t < numTerms; t++) {
+				index.termNames[t] = names.readUTF();
+				index.idf[t] = names.readDouble();
+			}
+			return index;
+		}
+		finally {
+			// the mappings stay valid once the file is closed
+			file.close();
+		}
+	}
+
+	/**
+	 * Prints the neighbors of a document of a saved index, or of a query of
+	 * words. Usage: AnnIndex index-file document|"words..." [k] [probes]
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: AnnIndex index-file document|\"words...\" [k] [probes]");
+			return;
+		}
+		AnnIndex index = load(new File(args[0]));
+		int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		int probes = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+		int d = index.document(args[1]);
+		Neighbor[] found = d >= 0 ? index.nearest(d, k, probes) : index.nearest(args[1], k, probes);
+		for (Neighbor n : found) {
+			System.out.println(index.documentName(n.document) + "," + n.cosine);
+		}
+	}
+
+	/**
+	 * Finds a document by name.
+	 *
+	 * @param name - the name, as in the header of the matrix
+	 *
+	 * @return The document, -1 if there is none of that name.
+	 */
+	public int document(String name) {
+		if (documentIds == null)
+			documentIds = ids(documentNames);
+		Integer d = documentIds.get(name);
+		return d == null ? -1 : d;
+	}
+
+	/**
+	 * @param d - the document
+	 *
+	 * @return The name of the document.
+	 */
+	public String documentName(int d) {
+		return documentNames[d];
+	}
+
+	/**
+	 * @return The number of documents.
+	 */
+	public int size() {
+		return numDocs;
+	}
+
+	/**
+	 * Computes the code of a vector in a table, one bit per hyperplane.
+	 */
+	private int code(int table, IntBuffer vTerms, FloatBuffer vWeights, int from, int to) {
+		int code = 0;
+		for (int b = 0; b < bits; b++) {
+			int planeSeed = planeSeeds[table * bits + b];
+			double projection = 0;
+			for (int i = from; i < to; i++) {
+				// the sign of the term on this hyperplane
+				if ((FeatureHash.mix(vTerms.get(i) * 0x9e3779b1 ^ planeSeed) & 1) == 0)
+					projection += vWeights.get(i);
+				else
+					projection -= vWeights.get(i);
+			}
+			if (projection > 0)
+				code |= 1 << b;
+		}
+		return code;
+	}
+
+	/**
+	 * Computes the cosine of a query with a document, both normalized.
+	 */
+	private double cosine(int[] qTerms, float[] qWeights, int d) {
+		double sum = 0;
+		int i = 0;
+		int j = docStart.get(d);
+		int end = docStart.get(d + 1);
+		while (i < qTerms.length && j < end) {
+			int t = terms.get(j);
+			if (qTerms[i] < t) {
+				i++;
+			}
+			else if (qTerms[i] > t) {
+				j++;
+			}
+			else {
+				sum += qWeights[i++] * weights.get(j++);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Finds the first position of a code in a sorted table.
+	 */
+	private int lowerBound(IntBuffer table, int code) {
+		int lo = 0;
+		int hi = numDocs;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (table.get(mid) < code)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static Map<String, Integer> ids(String[] names) {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (int i = 0; i < names.length; i++) {
+			ids.put(names[i], i);
+		}
+		return ids;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long offset, int ints) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * ints);
+	}
+
+	private static void writeInts(DataOutputStream out, IntBuffer values) throws IOException {
+		for (int i = 0; i < values.limit(); i++) {
+			out.writeInt(values.get(i));
+		}
+	}
+
+	/**
+	 * A document found by a lookup and its cosine with the query.
+	 */
+	public static class Neighbor implements Comparable<Neighbor> {
+		public final int document;
+		public final double cosine;
+
+		Neighbor(int document, double cosine) {
+			this.document = document;
+			this.cosine = cosine;
+		}
+
+		public int compareTo(Neighbor o) {
+			int c = Double.compare(cosine, o.cosine);
+			return c != 0 ? c : Integer.compare(o.document, document);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+// This class hands the bytes written to it over to a background thread, which
+// writes them to the underlying stream. Wrapping a compressing stream lets the
+// compression run alongside whatever produces the bytes.
+
+package edu.bu.sbahr;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+public class AsyncOutputStream extends OutputStream {
+
+	/** Size of each buffer handed over */
+	private static final int BUFFER_SIZE = 1 << 16;
+	/** Number of buffers in flight */
+	private static final int BUFFERS = 4;
+
+	/** Filled buffers waiting to be written, a zero length one ends the stream */
+	private final BlockingQueue<Chunk> filled = new ArrayBlockingQueue<Chunk>(BUFFERS);
+	/** Written buffers ready to be filled again */
+	private final BlockingQueue<Chunk> free = new ArrayBlockingQueue<Chunk>(BUFFERS + 1);
+	/** The buffer being filled */
+	private Chunk current;
+	/** The thread writing to the underlying stream */
+	private final Thread writerThread;
+	/** The error the writer thread failed with */
+	private volatile IOException error;
+	private boolean closed;
+
+	/**
+	 * Construct a new stream
+	 * 
+	 * @param out - the stream written to in the background, closed with this
+	 *            stream
+	 */
+	public AsyncOutputStream(final OutputStream out) {
+		for (int i = 0; i <= BUFFERS; i++) {
+			free.add(new Chunk());
+		}
+		current = free.poll();
+
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						Chunk c = filled.take();
+						if (c.length == 0)
+							break;
+						// keep draining after an error, so the producer never blocks
+						try {
+							if (error == null)
+								out.write(c.data, 0, c.length);
+						}
+						catch (IOException e) {
+							error = e;
+						}
+						c.length = 0;
+						free.put(c);
+					}
+				}
+				catch (InterruptedException e) {
+					error = new IOException("Interrupted while writing", e);
+				}
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+					if (error == null)
+						error = e;
+				}
+			}
+		}, "tdg-compress");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current.length == BUFFER_SIZE)
+			handOver();
+		current.data[current.length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current.length == BUFFER_SIZE)
+				handOver();
+			int n = Math.min(len, BUFFER_SIZE - current.length);
+			System.arraycopy(b, off, current.data, current.length, n);
+			current.length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (current.length > 0)
+				handOver();
+		}
+		finally {
+			// even after a failure, so the writer thread closes the stream
+			finish();
+		}
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Tells the writer thread to finish with an empty buffer, and waits for it
+	 * to close the underlying stream.
+	 */
+	private void finish() throws IOException {
+		// the current buffer wasn't handed over if that failed
+		Chunk end = current.length == 0 ? current : new Chunk();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				filled.put(end);
+				break;
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		while (writerThread.isAlive()) {
+			try {
+				writerThread.join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			if (error == null)
+				error = new IOException("Interrupted while closing");
+		}
+	}
+
+	/**
+	 * Hands the current buffer to the writer thread and takes a free one.
+	 */
+	private void handOver() throws IOException {
+		if (error != null)
+			throw error;
+		try {
+			filled.put(current);
+			current = free.take();
+		}
+		catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing", e);
+		}
+	}
+
+	/**
+	 * A buffer and the number of bytes in it.
+	 */
+	private static class Chunk {
+		final byte[] data = new byte[BUFFER_SIZE];
+		int length;
+	}
+}
@@ -0,0 +1,177 @@
+// This enum lists the ways the matrix files can be compressed. Compressing
+// streams are fed from a separate thread, so that compression overlaps with
+// formatting the matrix.
+
+package edu.bu.sbahr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public enum Compression {
+
+	NONE(""), GZIP(".gz"), DEFLATE(".deflate"), LZ(".lz");
+
+	/** Size of the stream buffers */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Extension appended to the file name */
+	protected final String extension;
+
+	private Compression(String extension) {
+		this.extension = extension;
+	}
+
+	/**
+	 * Gets the compression by name.
+	 * 
+	 * @param name - the name, case insensitive
+	 * 
+	 * @return The compression, NONE if the name is unknown.
+	 */
+	public static Compression forName(String name) {
+		for (Compression c : values()) {
+			if (c.name().equalsIgnoreCase(name)) {
+				return c;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Gets the compression of a file from its extension.
+	 * 
+	 * @param f - the file
+	 * 
+	 * @return The compression, NONE if the extension is unknown.
+	 */
+	public static Compression forFile(File f) {
+		for (Compression c : values()) {
+			if (c != NONE && f.getName().endsWith(c.extension)) {
+				return c;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Opens a file for writing. Unless uncompressed, the compression runs on
+	 * its own thread.
+	 * 
+	 * @param path - the file name, without the compression extension
+	 * 
+	 * @return The stream, writing to path plus the compression extension.
+	 * @throws IOException - error opening
+	 */
+	public OutputStream open(String path) throws IOException {
+		OutputStream file = new FileOutputStream(path + extension);
+		switch (this) {
+			case GZIP:
+				return new AsyncOutputStream(new ClosingGZIPOutputStream(file));
+			case DEFLATE:
+				return new AsyncOutputStream(new EndingDeflaterOutputStream(file));
+			case LZ:
+				return new AsyncOutputStream(new LzOutputStream(new BufferedOutputStream(file, BUFFER_SIZE)));
+			default:
+				return new BufferedOutputStream(file, BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Opens a file written by open for reading, decompressing it according to
+	 * its extension.
+	 * 
+	 * @param f - the file
+	 * 
+	 * @return The uncompressed stream.
+	 * @throws IOException - error opening
+	 */
+	public static InputStream openInput(File f) throws IOException {
+		InputStream file = new FileInputStream(f);
+		switch (forFile(f)) {
+			case GZIP:
+				return new GZIPInputStream(file, BUFFER_SIZE);
+			case DEFLATE:
+				return new EndingInflaterInputStream(file);
+			case LZ:
+				return new LzInputStream(new BufferedInputStream(file, BUFFER_SIZE));
+			default:
+				return new BufferedInputStream(file, BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * A deflating stream that ends its deflater once closed, so its native
+	 * memory is freed at once rather than when it is collected. The file is
+	 * closed even if the last bytes fail to be written.
+	 */
+	private static class EndingDeflaterOutputStream extends DeflaterOutputStream {
+
+		EndingDeflaterOutputStream(OutputStream out) {
+			super(out, new Deflater(), BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				def.end();
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * A gzip stream that closes the file even if the last bytes fail to be
+	 * written.
+	 */
+	private static class ClosingGZIPOutputStream extends GZIPOutputStream {
+
+		ClosingGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * An inflating stream that ends its inflater once closed.
+	 */
+	private static class EndingInflaterInputStream extends InflaterInputStream {
+
+		EndingInflaterInputStream(InputStream in) {
+			super(in, new Inflater(), BUFFER_SIZE);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			}
+			finally {
+				inf.end();
+			}
+		}
+	}
+}
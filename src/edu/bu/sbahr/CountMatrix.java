@@ -0,0 +1,100 @@
+// This class holds the assembled term-document counts in compressed sparse
+// row (CSR) form: the rows are the terms of the vocabulary, and each row lists
+// the documents the term appears in with its count there. The document ids
+// and counts are stored in IntArrays, optionally off the heap, which is far
+// more compact than a map of boxed counts per document.
+
+package edu.bu.sbahr;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CountMatrix {
+
+	/** Number of terms (rows) and documents (columns) */
+	protected int numTerms;
+	protected int numDocs;
+	/** Where each row starts, the last entry is the number of non-zeros */
+	protected long[] rowStart;
+	/** Document of each non-zero */
+	protected IntArray docs;
+	/** Count of each non-zero */
+	protected IntArray counts;
+
+	/**
+	 * Assembles the matrix from its rows.
+	 *
+	 * @param rows - the rows, one per term of the vocabulary, closed once read
+	 * @param numTerms - the number of terms
+	 * @param numDocs - the number of documents
+	 * @param offHeap - store the non-zeros off the heap
+	 * @throws IOException - error reading
+	 */
+	public CountMatrix(RowSource rows, int numTerms, int numDocs, boolean offHeap) throws IOException {
+		this.numTerms = numTerms;
+		this.numDocs = numDocs;
+		this.rowStart = new long[numTerms + 1];
+		this.docs = new IntArray(offHeap);
+		this.counts = new IntArray(offHeap);
+
+		int[] row = new int[numDocs];
+		for (int t = 0; t < numTerms; t++) {
+			rows.next(row);
+			for (int i = 0; i < numDocs; i++) {
+				if (row[i] != 0) {
+					docs.add(i);
+					counts.add(row[i]);
+				}
+			}
+			rowStart[t + 1] = docs.size();
+		}
+		rows.close();
+	}
+
+	/**
+	 * Gets the number of documents a term appears in.
+	 *
+	 * @param t - the term
+	 *
+	 * @return The document frequency.
+	 */
+	public int docFreq(int t) {
+		return (int) (rowStart[t + 1] - rowStart[t]);
+	}
+
+	/**
+	 * Fills a dense row with the counts of a term.
+	 *
+	 * @param t - the term
+	 * @param row - filled with the count of the term in each document
+	 */
+	public void row(int t, int[] row) {
+		Arrays.fill(row, 0);
+		for (long k = rowStart[t]; k < rowStart[t + 1]; k++) {
+			row[docs.get(k)] = counts.get(k);
+		}
+	}
+
+	/**
+	 * @return The rows of the matrix, in order.
+	 */
+	public RowSource rows() {
+		return new RowSource() {
+			private int term;
+
+			public void next(int[] counts) {
+				row(term++, counts);
+			}
+
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * @return The number of non-zeros.
+	 */
+	public long nonZeros() {
+		return rowStart[numTerms];
+	}
+}
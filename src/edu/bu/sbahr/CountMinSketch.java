@@ -0,0 +1,88 @@
+// This class is a Count-Min sketch: it estimates how often each key was counted
+// in a fixed amount of memory, whatever the number of keys. Each of depth rows
+// hashes the key to one of width counters; the estimate is the smallest of
+// the key's counters. It never underestimates, and overestimates by at most
+// e / width of the total count with probability 1 - e^-depth.
+
+package edu.bu.sbahr;
+
+public class CountMinSketch {
+
+	/** Number of rows, and of counters in each row */
+	private int depth;
+	private int width;
+	/** The counters, row after row */
+	private long[] counters;
+	/** Seed of each row's hash */
+	private int[] seeds;
+	/** Sum of everything counted */
+	private long total;
+
+	/**
+	 * Construct a new sketch
+	 *
+	 * @param depth - the number of rows
+	 * @param width - the number of counters in each row
+	 */
+	public CountMinSketch(int depth, int width) {
+		this.depth = depth;
+		this.width = width;
+		this.counters = new long[depth * width];
+		this.seeds = new int[depth];
+		int seed = 0x3c6ef372;
+		for (int r = 0; r < depth; r++) {
+			seed = FeatureHash.mix(seed + 0x9e3779b9);
+			seeds[r] = seed;
+		}
+	}
+
+	/**
+	 * Counts a key.
+	 *
+	 * @param key - the hash of the key
+	 * @param amount - the amount to count
+	 */
+	public void add(int key, long amount) {
+		for (int r = 0; r < depth; r++) {
+			counters[r * width + index(key, r)] += amount;
+		}
+		total += amount;
+	}
+
+	/**
+	 * Estimates the count of a key.
+	 *
+	 * @param key - the hash of the key
+	 *
+	 * @return The estimate, never less than the true count.
+	 */
+	public long estimate(int key) {
+		long min = Long.MAX_VALUE;
+		for (int r = 0; r < depth; r++) {
+			min = Math.min(min, counters[r * width + index(key, r)]);
+		}
+		return min;
+	}
+
+	/**
+	 * @return The sum of everything counted.
+	 */
+	public long total() {
+		return total;
+	}
+
+	/**
+	 * @return The bytes taken by the counters.
+	 */
+	public long bytes() {
+		return 8L * counters.length;
+	}
+
+	/**
+	 * Maps a key to a counter of a row.
+	 */
+	private int index(int key, int row) {
+		int h = FeatureHash.mix(key ^ seeds[row]);
+		return (int) ((h & 0xffffffffL) * width >>> 32);
+	}
+}
@@ -0,0 +1,454 @@
+// This class loads a matrix written by TDGenerator back into memory, keeping
+// only the non-zero cells, one sparse row per term. The file is memory mapped
+// rather than read, and split at line boundaries into ranges of rows that are
+// parsed in parallel on a fork-join pool. Compressed files can't be mapped,
+// so they are decompressed into memory first.
+//
+// The cells are parsed by hand: a value with at most 15 significant digits
+// and a small exponent, like every count, is exactly its digits times a power
+// of ten. Longer values are left to Double.parseDouble so they round the same.
+
+package edu.bu.sbahr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class CsvMatrix {
+
+	/** Most bytes of rows parsed by one task, so each range can be mapped */
+	private static final long MAX_RANGE = 1 << 30;
+	/** Bytes mapped at a time while looking for the end of a line */
+	private static final int WINDOW = 1 << 16;
+	/** The character set of the numbers */
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	/** The powers of ten that are exact doubles */
+	private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+					1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/** Names of the documents, the columns */
+	protected String[] documents;
+	/** The terms, the rows */
+	protected String[] terms;
+	/** Where each term's cells start, the last entry is their total */
+	protected int[] rowStart;
+	/** Document of each non-zero cell, in increasing order within a term */
+	protected int[] columns;
+	/** Value of each non-zero cell */
+	protected double[] values;
+
+	/** The file, mapped, or decompressed into memory */
+	private FileChannel channel;
+	private ByteBuffer heap;
+	private long size;
+	/** The character set the names and terms were written in */
+	private Charset charset;
+
+	/**
+	 * Loads a matrix file.
+	 *
+	 * @param f - the file, possibly compressed
+	 * @param threads - the number of threads
+	 * @param charset - the character set the file was written in, the
+	 *            encoding in the summary of the run that wrote it
+	 *
+	 * @return The matrix.
+	 * @throws IOException - error reading, or a malformed file
+	 */
+	public static CsvMatrix load(File f, int threads, Charset charset) throws IOException {
+		CsvMatrix matrix = new CsvMatrix();
+		matrix.charset = charset;
+		RandomAccessFile file = null;
+		try {
+			if (Compression.forFile(f) == Compression.NONE) {
+				file = new RandomAccessFile(f, "r");
+				matrix.channel = file.getChannel();
+				matrix.size = matrix.channel.size();
+			}
+			else {
+				matrix.heap = ByteBuffer.wrap(readAll(f));
+				matrix.size = matrix.heap.capacity();
+			}
+			matrix.parse(Math.max(threads, 1));
+			return matrix;
+		}
+		finally {
+			matrix.channel = null;
+			matrix.heap = null;
+			// the mappings stay valid once the file is closed
+			if (file != null)
+				file.close();
+		}
+	}
+
+	/**
+	 * Prints the size of a matrix file and how long it took to load. Usage:
+	 * CsvMatrix matrix-file [threads] [encoding], the encoding UTF-8 unless
+	 * given.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: CsvMatrix matrix-file [threads] [encoding]");
+			return;
+		}
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		Charset charset = Charset.forName(args.length > 2 ? args[2] : "UTF-8");
+		long start = System.currentTimeMillis();
+		CsvMatrix matrix = load(new File(args[0]), threads, charset);
+		System.out.println(matrix.numTerms() + " terms, " + matrix.numDocs() + " documents, " + matrix.nonZeros()
+						+ " non-zeros (" + (System.currentTimeMillis() - start) + " msecs)");
+	}
+
+	/**
+	 * @return The number of terms.
+	 */
+	public int numTerms() {
+		return terms.length;
+	}
+
+	/**
+	 * @return The number of documents.
+	 */
+	public int numDocs() {
+		return documents.length;
+	}
+
+	/**
+	 * @return The number of non-zero cells.
+	 */
+	public int nonZeros() {
+		return values.length;
+	}
+
+	/**
+	 * Fills the values of a term in every document.
+	 *
+	 * @param t - the term
+	 * @param row - filled with the value in each document
+	 */
+	public void row(int t, double[] row) {
+		Arrays.fill(row, 0);
+		for (int k = rowStart[t]; k < rowStart[t + 1]; k++) {
+			row[columns[k]] = values[k];
+		}
+	}
+
+	/**
+	 * Parses the header, then the rows in parallel.
+	 */
+	private void parse(int threads) throws IOException {
+		long headerEnd = lineEnd(0);
+		ByteBuffer header = slice(0, headerEnd);
+		List<String> names = new ArrayList<String>();
+		int i = field(header, 0);
+		while (i < header.limit() && header.get(i) != '\n') {
+			int end = field(header, ++i);
+			if (end > i)
+				names.add(decode(header, i, end, charset));
+			i = end;
+		}
+		documents = names.toArray(new String[names.size()]);
+
+		// split the rows into ranges at line boundaries
+		long data = size - headerEnd;
+		int numRanges = (int) Math.max(threads, (data + MAX_RANGE - 1) / MAX_RANGE);
+		numRanges = (int) Math.max(Math.min(numRanges, data / WINDOW), 1);
+		long[] bounds = new long[numRanges + 1];
+		bounds[0] = headerEnd;
+		for (int r = 1; r < numRanges; r++) {
+			long target = headerEnd + data * r / numRanges;
+			bounds[r] = Math.max(lineEnd(target - 1), bounds[r - 1]);
+		}
+		bounds[numRanges] = size;
+
+		Rows[] parsed = new Rows[numRanges];
+		for (int r = 0; r < numRanges; r++) {
+			parsed[r] = new Rows(slice(bounds[r], bounds[r + 1]), charset);
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			pool.invoke(new Ranges(parsed, 0, numRanges));
+		}
+		finally {
+			pool.shutdown();
+		}
+		for (Rows rows : parsed) {
+			if (rows.error != null)
+				throw rows.error;
+		}
+
+		// join the ranges' rows in file order
+		int numTerms = 0;
+		long nonZeros = 0;
+		for (Rows rows : parsed) {
+			numTerms += rows.terms.size();
+			nonZeros += rows.size;
+		}
+		if (nonZeros > Integer.MAX_VALUE)
+			throw new IOException("Too many non-zero cells: " + nonZeros);
+		terms = new String[numTerms];
+		rowStart = new int[numTerms + 1];
+		columns = new int[(int) nonZeros];
+		values = new double[(int) nonZeros];
+		int t = 0;
+		int offset = 0;
+		for (Rows rows : parsed) {
+			for (int r = 0; r < rows.terms.size(); r++) {
+				terms[t] = rows.terms.get(r);
+				rowStart[t] = offset + rows.rowStart[r];
+				t++;
+			}
+			System.arraycopy(rows.columns, 0, columns, offset, rows.size);
+			System.arraycopy(rows.values, 0, values, offset, rows.size);
+			offset += rows.size;
+			rows.columns = null;
+			rows.values = null;
+		}
+		rowStart[numTerms] = offset;
+	}
+
+	/**
+	 * @return The bytes from one offset to another, at most MAX_RANGE apart.
+	 */
+	private ByteBuffer slice(long from, long to) throws IOException {
+		if (heap != null) {
+			ByteBuffer b = heap.duplicate();
+			b.limit((int) to);
+			b.position((int) from);
+			return b.slice();
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+	}
+
+	/**
+	 * @return The offset just after the first line break at or after an
+	 *         offset, the file size if there is none.
+	 */
+	private long lineEnd(long from) throws IOException {
+		long pos = from;
+		while (pos < size) {
+			ByteBuffer window = slice(pos, Math.min(pos + WINDOW, size));
+			for (int i = 0; i < window.limit(); i++) {
+				if (window.get(i) == '\n')
+					return pos + i + 1;
+			}
+			pos += window.limit();
+		}
+		return size;
+	}
+
+	/**
+	 * @return The end of the field starting at an index: the next comma or
+	 *         line break, or the end of the buffer.
+	 */
+	private static int field(ByteBuffer b, int i) {
+		int limit = b.limit();
+		while (i < limit) {
+			byte c = b.get(i);
+			if (c == ',' || c == '\n')
+				return i;
+			i++;
+		}
+		return limit;
+	}
+
+	private static String decode(ByteBuffer b, int from, int to, Charset charset) {
+		byte[] bytes = new byte[to - from];
+		for (int i = from; i < to; i++) {
+			bytes[i - from] = b.get(i);
+		}
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Parses a number, as written by String.valueOf(double).
+	 *
+	 * @param b - the bytes
+	 * @param from - the index of the first character
+	 * @param to - the index after the last character
+	 *
+	 * @return The value.
+	 * @throws NumberFormatException - not a number
+	 */
+	protected static double parseDouble(ByteBuffer b, int from, int to) {
+		int i = from;
+		boolean negative = i < to && b.get(i) == '-';
+		if (negative)
+			i++;
+
+		// keep up to 18 digits, enough for the mantissa of any double
+		long mantissa = 0;
+		int digits = 0;
+		int exponent = 0;
+		boolean any = false;
+		boolean point = false;
+		for (; i < to; i++) {
+			int c = b.get(i);
+			if (c >= '0' && c <= '9') {
+				any = true;
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0)
+						digits++;
+					if (point)
+						exponent--;
+				}
+				else if (!point) {
+					exponent++;
+				}
+			}
+			else if (c == '.' && !point) {
+				point = true;
+			}
+			else {
+				break;
+			}
+		}
+
+		if (any && i < to && (b.get(i) == 'E' || b.get(i) == 'e')) {
+			i++;
+			boolean negativeExp = i < to && b.get(i) == '-';
+			if (negativeExp)
+				i++;
+			int exp = 0;
+			int start = i;
+			for (; i < to && b.get(i) >= '0' && b.get(i) <= '9' && exp < 100000; i++) {
+				exp = exp * 10 + (b.get(i) - '0');
+			}
+			if (i == start)
+				any = false;
+			exponent += negativeExp ? -exp : exp;
+		}
+
+		if (any && i == to) {
+			if (mantissa == 0)
+				return negative ? -0.0 : 0.0;
+			if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+				double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa
+								* POWERS_OF_TEN[exponent];
+				return negative ? -value : value;
+			}
+		}
+		// too long to round by hand, or NaN, Infinity or malformed
+		return Double.parseDouble(decode(b, from, to, ASCII));
+	}
+
+	private static byte[] readAll(File f) throws IOException {
+		InputStream in = Compression.openInput(f);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The rows of a range of the file, parsed.
+	 */
+	private static class Rows {
+		ByteBuffer bytes;
+		Charset charset;
+		List<String> terms = new ArrayList<String>();
+		int[] rowStart = new int[16];
+		int[] columns = new int[1024];
+		double[] values = new double[1024];
+		int size;
+		IOException error;
+
+		Rows(ByteBuffer bytes, Charset charset) {
+			this.bytes = bytes;
+			this.charset = charset;
+		}
+
+		void parse() {
+			ByteBuffer b = bytes;
+			int limit = b.limit();
+			int i = 0;
+			try {
+				while (i < limit) {
+					int end = field(b, i);
+					if (end == i && b.get(i) == '\n') {
+						// blank line
+						i++;
+						continue;
+					}
+					if (terms.size() == rowStart.length)
+						rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+					rowStart[terms.size()] = size;
+					terms.add(decode(b, i, end, charset));
+
+					int column = 0;
+					i = end;
+					while (i < limit && b.get(i) != '\n') {
+						end = field(b, ++i);
+						if (end > i) {
+							double value = parseDouble(b, i, end);
+							if (value != 0)
+								add(column, value);
+							column++;
+						}
+						i = end;
+					}
+					i++;
+				}
+			}
+			catch (NumberFormatException e) {
+				error = new IOException("Bad cell in the row of " + terms.get(terms.size() - 1) + ": " + e.getMessage());
+			}
+			bytes = null;
+		}
+
+		void add(int column, double value) {
+			if (size == columns.length) {
+				columns = Arrays.copyOf(columns, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			columns[size] = column;
+			values[size] = value;
+			size++;
+		}
+	}
+
+	/**
+	 * Splits the ranges until there's one left, then parses it.
+	 */
+	private static class Ranges extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Rows[] parsed;
+		private int from;
+		private int to;
+
+		Ranges(Rows[] parsed, int from, int to) {
+			this.parsed = parsed;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				parsed[from].parse();
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Ranges(parsed, from, mid), new Ranges(parsed, mid, to));
+		}
+	}
+}
@@ -13,6 +13,8 @@ public class Document {
 	protected String documentName;
 	/** Map of terms to frequency */
 	protected Map<String, Integer> termFrequency;
+	/** Counts of hashed feature buckets, null unless feature hashing */
+	protected IntCountMap featureCounts;
 
 	/**
 	 * Construct a new document
@@ -0,0 +1,44 @@
+// This class reads the rows of the matrix from the term maps of documents that
+// are still in memory.
+
+package edu.bu.sbahr;
+
+import java.util.List;
+
+public class DocumentRows implements RowSource {
+
+	/** The documents */
+	private List<Document> documents;
+	/** The terms that make up the rows */
+	private Vocabulary vocab;
+	/** The next row */
+	private int term;
+
+	/**
+	 * Construct new rows
+	 * 
+	 * @param documents - the documents, all of them in memory
+	 * @param vocab - the terms that make up the rows
+	 */
+	public DocumentRows(List<Document> documents, Vocabulary vocab) {
+		this.documents = documents;
+		this.vocab = vocab;
+	}
+
+	public void next(int[] counts) {
+		int t = term++;
+		for (int i = 0; i < documents.size(); i++) {
+			Document d = documents.get(i);
+			if (vocab.buckets != null) {
+				counts[i] = d.featureCounts.get(vocab.buckets[t]);
+			}
+			else {
+				Integer occur = d.termFrequency.get(vocab.terms[t]);
+				counts[i] = occur == null ? 0 : occur;
+			}
+		}
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,85 @@
+// This class holds the tf-idf vector of every document, the columns of the
+// "Prime" matrix, normalized to unit length and stored sparse by document
+// (compressed sparse column form). The cosine similarity of two documents is
+// then the dot product of their vectors.
+
+package edu.bu.sbahr;
+
+public class DocumentVectors {
+
+	/** Number of documents and terms */
+	protected int numDocs;
+	protected int numTerms;
+	/** Where each document's terms start, the last entry is their total */
+	protected int[] docStart;
+	/** Term of each non-zero, in increasing order within a document */
+	protected int[] terms;
+	/** Normalized tf-idf of each non-zero */
+	protected float[] weights;
+	/** Length of each document's tf-idf vector before normalizing */
+	protected double[] norms;
+
+	/**
+	 * Builds the normalized tf-idf vectors of the documents.
+	 *
+	 * @param matrix - the counts of each term
+	 * @param idf - the inverse document frequency of each term
+	 */
+	public DocumentVectors(CountMatrix matrix, double[] idf) {
+		this.numDocs = matrix.numDocs;
+		this.numTerms = matrix.numTerms;
+		if (matrix.nonZeros() > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many non-zeros for document vectors: " + matrix.nonZeros());
+
+		// count the terms of each document
+		docStart = new int[numDocs + 1];
+		for (long k = 0; k < matrix.nonZeros(); k++) {
+			docStart[matrix.docs.get(k) + 1]++;
+		}
+		for (int d = 0; d < numDocs; d++) {
+			docStart[d + 1] += docStart[d];
+		}
+
+		// walking the terms in order keeps each document's terms sorted
+		int[] next = new int[numDocs];
+		System.arraycopy(docStart, 0, next, 0, numDocs);
+		terms = new int[docStart[numDocs]];
+		weights = new float[docStart[numDocs]];
+		norms = new double[numDocs];
+		for (int t = 0; t < numTerms; t++) {
+			for (long k = matrix.rowStart[t]; k < matrix.rowStart[t + 1]; k++) {
+				int d = matrix.docs.get(k);
+				double w = matrix.counts.get(k) * idf[t];
+				terms[next[d]] = t;
+				weights[next[d]] = (float) w;
+				next[d]++;
+				norms[d] += w * w;
+			}
+		}
+
+		for (int d = 0; d < numDocs; d++) {
+			norms[d] = Math.sqrt(norms[d]);
+			if (norms[d] > 0) {
+				for (int k = docStart[d]; k < docStart[d + 1]; k++) {
+					weights[k] /= norms[d];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the dot product of a document with a dense vector.
+	 *
+	 * @param d - the document
+	 * @param v - the dense vector, one entry per term
+	 *
+	 * @return The dot product.
+	 */
+	public double dot(int d, double[] v) {
+		double sum = 0;
+		for (int k = docStart[d]; k < docStart[d + 1]; k++) {
+			sum += weights[k] * v[terms[k]];
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,232 @@
+// This class finds documents that are copies or near copies of documents that
+// were already parsed. Exact copies are found by hashing the file content
+// before it is parsed, and comparing it with the files of the same hash. Near
+// copies are found with a MinHash signature of each document's set of stems,
+// which estimates the Jaccard similarity of two documents; signatures are split
+// into bands and indexed (LSH banding), so a document is only compared with the
+// documents sharing a band with it. A document without any stems is never a
+// near copy.
+
+package edu.bu.sbahr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class DuplicateDetector {
+
+	/** Documents by the hash of their content */
+	private Map<Long, List<File>> contentHashes = new HashMap<Long, List<File>>();
+	/** Number of bands, and of signature rows in each band */
+	private int bands;
+	private int rows;
+	/** Seeds of the signature's hash functions */
+	private int[] seeds;
+	/** Signatures and names of the indexed documents */
+	private List<int[]> signatures = new ArrayList<int[]>();
+	private List<String> names = new ArrayList<String>();
+	/** Indexed documents by the hash of each of their bands */
+	private Map<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();
+	/** Lines of the duplicates report */
+	private List<String> report = new ArrayList<String>();
+
+	/**
+	 * Construct a new detector
+	 *
+	 * @param bands - the number of LSH bands
+	 * @param rows - the number of signature rows in each band
+	 */
+	public DuplicateDetector(int bands, int rows) {
+		this.bands = bands;
+		this.rows = rows;
+		this.seeds = new int[bands * rows];
+		int seed = 0x2545f491;
+		for (int i = 0; i < seeds.length; i++) {
+			seed = FeatureHash.mix(seed + 0x9e3779b9);
+			seeds[i] = seed;
+		}
+	}
+
+	/**
+	 * Checks whether a document's content was seen before, and remembers it
+	 * if not.
+	 *
+	 * @param content - the bytes of the document
+	 * @param file - the document
+	 *
+	 * @return The name of the document it copies, null if it is new.
+	 * @throws IOException - error reading a document of the same hash
+	 */
+	public String exactDuplicate(byte[] content, File file) throws IOException {
+		// 64 bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (byte b : content) {
+			h ^= b & 0xff;
+			h *= 0x100000001b3L;
+		}
+		h ^= content.length;
+
+		List<File> same = contentHashes.get(h);
+		if (same == null) {
+			same = new ArrayList<File>(1);
+			contentHashes.put(h, same);
+		}
+		// the hash isn't collision resistant, only the bytes tell a copy
+		for (File f : same) {
+			if (f.length() == content.length && Arrays.equals(Files.readAllBytes(f.toPath()), content)) {
+				report.add(file.getName() + "," + f.getName() + ",exact,1.0");
+				return f.getName();
+			}
+		}
+		same.add(file);
+		return null;
+	}
+
+	/**
+	 * @return A new, empty signature.
+	 */
+	public int[] newSignature() {
+		int[] signature = new int[seeds.length];
+		Arrays.fill(signature, Integer.MAX_VALUE);
+		return signature;
+	}
+
+	/**
+	 * Adds a stem to a signature. Only needs to be called the first time the
+	 * stem is seen in a document.
+	 *
+	 * @param signature - the signature
+	 * @param stemHash - the hash of the stem
+	 */
+	public void update(int[] signature, int stemHash) {
+		for (int i = 0; i < signature.length; i++) {
+			int v = FeatureHash.mix(stemHash ^ seeds[i]);
+			if (v < signature[i])
+				signature[i] = v;
+		}
+	}
+
+	/**
+	 * Finds the most similar indexed document whose estimated Jaccard
+	 * similarity reaches the threshold. Unless it is a near copy that gets
+	 * collapsed, the document is then indexed.
+	 *
+	 * @param signature - the document's signature
+	 * @param name - the document name
+	 * @param threshold - the minimum Jaccard similarity
+	 * @param collapse - whether near copies are dropped instead of indexed
+	 *
+	 * @return The name of the document it nearly copies, null if none, or if
+	 *         the signature is empty.
+	 */
+	public String nearDuplicate(int[] signature, String name, double threshold, boolean collapse) {
+		// every empty signature is the same, but the documents aren't copies
+		if (isEmpty(signature))
+			return null;
+
+		long[] keys = new long[bands];
+		for (int b = 0; b < bands; b++) {
+			long h = b;
+			for (int r = b * rows; r < (b + 1) * rows; r++) {
+				h = h * 0x100000001b3L ^ signature[r];
+			}
+			keys[b] = h;
+		}
+
+		// compare with every document sharing a band
+		Set<Integer> compared = new HashSet<Integer>();
+		int best = -1;
+		double bestSimilarity = 0;
+		for (long key : keys) {
+			List<Integer> candidates = buckets.get(key);
+			if (candidates == null)
+				continue;
+			for (int c : candidates) {
+				if (!compared.add(c))
+					continue;
+				double similarity = similarity(signature, signatures.get(c));
+				if (similarity >= threshold && similarity > bestSimilarity) {
+					best = c;
+					bestSimilarity = similarity;
+				}
+			}
+		}
+
+		if (best >= 0) {
+			report.add(name + "," + names.get(best) + ",near," + bestSimilarity);
+			if (collapse)
+				return names.get(best);
+		}
+
+		int id = signatures.size();
+		signatures.add(signature);
+		names.add(name);
+		for (long key : keys) {
+			List<Integer> bucket = buckets.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Integer>(2);
+				buckets.put(key, bucket);
+			}
+			bucket.add(id);
+		}
+		return best >= 0 ? names.get(best) : null;
+	}
+
+	/**
+	 * @return Whether no stem was added to a signature.
+	 */
+	private static boolean isEmpty(int[] signature) {
+		for (int v : signature) {
+			if (v != Integer.MAX_VALUE)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Estimates the Jaccard similarity of two documents from their
+	 * signatures.
+	 */
+	private static double similarity(int[] a, int[] b) {
+		int same = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == b[i])
+				same++;
+		}
+		return (double) same / a.length;
+	}
+
+	/**
+	 * @return Whether any duplicate was found.
+	 */
+	public boolean hasDuplicates() {
+		return !report.isEmpty();
+	}
+
+	/**
+	 * Writes the duplicates found, one per line.
+	 *
+	 * @param f - the report file
+	 * @throws IOException - error writing
+	 */
+	public void writeReport(File f) throws IOException {
+		Writer writer = new OutputStreamWriter(new FileOutputStream(f), Settings.charset);
+		writer.append("document,duplicateOf,kind,similarity\n");
+		for (String line : report) {
+			writer.append(line);
+			writer.append('\n');
+		}
+		writer.flush();
+		writer.close();
+	}
+}
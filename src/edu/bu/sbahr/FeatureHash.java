@@ -0,0 +1,85 @@
+// This class maps terms into a fixed feature space of 2^k buckets, so that
+// n-gram vocabularies don't need a dictionary. The hash is computed straight
+// over the stemmer's result buffer, so no String is created per token.
+//
+// The hash is FNV-1a over the characters followed by the murmur3 finalizer.
+
+package edu.bu.sbahr;
+
+public class FeatureHash {
+
+	private static final int FNV_OFFSET = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	/**
+	 * Hashes a portion of a character buffer.
+	 *
+	 * @param buf - the characters
+	 * @param len - the number of characters to hash
+	 *
+	 * @return The 32 bit hash.
+	 */
+	public static int hash(char[] buf, int len) {
+		int h = FNV_OFFSET;
+		for (int c = 0; c < len; c++) {
+			h ^= buf[c];
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Hashes a term, giving the same hash as the buffer holding its
+	 * characters.
+	 *
+	 * @param term - the term
+	 *
+	 * @return The 32 bit hash.
+	 */
+	public static int hash(String term) {
+		int h = FNV_OFFSET;
+		for (int c = 0; c < term.length(); c++) {
+			h ^= term.charAt(c);
+			h *= FNV_PRIME;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * Combines the hash of a preceding term with the hash of the terms that
+	 * follow it, giving the hash of the n-gram. The order of the terms
+	 * matters.
+	 *
+	 * @param before - hash of the preceding term
+	 * @param after - hash of the following terms
+	 *
+	 * @return The hash of the n-gram.
+	 */
+	public static int combine(int before, int after) {
+		return mix(before * 0x9e3779b1 + Integer.rotateLeft(after, 13));
+	}
+
+	/**
+	 * Gets the bucket of a hash in a space of 2^bits buckets.
+	 *
+	 * @param hash - the hash
+	 * @param bits - log2 of the number of buckets
+	 *
+	 * @return The bucket.
+	 */
+	public static int bucket(int hash, int bits) {
+		return hash >>> (32 - bits);
+	}
+
+	/**
+	 * The murmur3 finalizer, spreads every input bit over the whole hash.
+	 */
+	protected static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+}
@@ -0,0 +1,75 @@
+// This class is a growable array of ints indexed by long, stored in chunks
+// either on the heap or off the heap in direct buffers. Off the heap, the
+// garbage collector neither scans nor copies the values.
+
+package edu.bu.sbahr;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+public class IntArray {
+
+	/** log2 of the number of ints in a chunk */
+	private static final int CHUNK_BITS = 20;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+	/** The chunks */
+	private IntBuffer[] chunks = new IntBuffer[0];
+	/** Whether the chunks are direct buffers */
+	private boolean offHeap;
+	/** Number of ints appended */
+	private long size;
+
+	/**
+	 * Construct a new array
+	 *
+	 * @param offHeap - store the values in direct buffers
+	 */
+	public IntArray(boolean offHeap) {
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Appends a value.
+	 *
+	 * @param value - the value
+	 */
+	public void add(int value) {
+		int chunk = (int) (size >>> CHUNK_BITS);
+		if (chunk == chunks.length) {
+			chunks = Arrays.copyOf(chunks, chunk + 1);
+			chunks[chunk] = offHeap ? ByteBuffer.allocateDirect(CHUNK_SIZE * 4).order(ByteOrder.nativeOrder())
+							.asIntBuffer() : IntBuffer.allocate(CHUNK_SIZE);
+		}
+		chunks[chunk].put((int) (size & CHUNK_MASK), value);
+		size++;
+	}
+
+	/**
+	 * Gets a value.
+	 *
+	 * @param i - the index
+	 *
+	 * @return The value.
+	 */
+	public int get(long i) {
+		return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & CHUNK_MASK));
+	}
+
+	/**
+	 * @return The number of values.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return The bytes taken by the chunks.
+	 */
+	public long capacityBytes() {
+		return (long) chunks.length * CHUNK_SIZE * 4;
+	}
+}
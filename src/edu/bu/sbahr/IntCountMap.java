@@ -0,0 +1,122 @@
+// This class counts non-negative int keys with open addressing, which avoids
+// boxing every key and count the way a HashMap<Integer, Integer> would.
+
+package edu.bu.sbahr;
+
+import java.util.Arrays;
+
+public class IntCountMap {
+
+	/** Keys of each slot, -1 if the slot is empty */
+	private int[] keys;
+	/** Counts of each slot */
+	private int[] counts;
+	/** Number of keys */
+	private int size;
+
+	/**
+	 * Construct a new map
+	 *
+	 * @param expected - the number of keys expected
+	 */
+	public IntCountMap(int expected) {
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		keys = new int[capacity];
+		counts = new int[capacity];
+		Arrays.fill(keys, -1);
+	}
+
+	/**
+	 * Adds to the count of a key.
+	 *
+	 * @param key - the key, not negative
+	 * @param amount - the amount to add
+	 */
+	public void add(int key, int amount) {
+		int slot = slot(key);
+		if (keys[slot] < 0) {
+			keys[slot] = key;
+			size++;
+			if (size * 2 > keys.length) {
+				counts[slot] = amount;
+				grow();
+				return;
+			}
+		}
+		counts[slot] += amount;
+	}
+
+	/**
+	 * Gets the count of a key.
+	 *
+	 * @param key - the key
+	 *
+	 * @return The count, 0 if the key was never added.
+	 */
+	public int get(int key) {
+		int slot = slot(key);
+		return keys[slot] < 0 ? 0 : counts[slot];
+	}
+
+	/**
+	 * @return The number of keys.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return The number of slots, used to iterate with keyAt and countAt.
+	 */
+	public int capacity() {
+		return keys.length;
+	}
+
+	/**
+	 * @return The key of a slot, -1 if the slot is empty.
+	 */
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+
+	/**
+	 * @return The count of a slot.
+	 */
+	public int countAt(int slot) {
+		return counts[slot];
+	}
+
+	/**
+	 * Finds the slot holding the key, or the empty slot it would go in.
+	 */
+	private int slot(int key) {
+		int mask = keys.length - 1;
+		int h = key * 0x9e3779b1;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] >= 0 && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Doubles the number of slots.
+	 */
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		keys = new int[oldKeys.length * 2];
+		counts = new int[oldKeys.length * 2];
+		Arrays.fill(keys, -1);
+		for (int s = 0; s < oldKeys.length; s++) {
+			if (oldKeys[s] >= 0) {
+				int slot = slot(oldKeys[s]);
+				keys[slot] = oldKeys[s];
+				counts[slot] = oldCounts[s];
+			}
+		}
+	}
+}
@@ -0,0 +1,335 @@
+// This class groups the documents into k clusters with spherical k-means: the
+// normalized tf-idf vectors are assigned to the centroid with the highest
+// cosine, and each centroid is the normalized sum of its documents. The
+// centroids are seeded with k-means++, which picks documents far from the
+// centroids chosen so far.
+//
+// Each step runs in two parallel halves, neither of which needs locking. The
+// documents are split into one partition per thread and assigned to their
+// closest centroid. Then the clusters are split between the threads, and
+// each cluster's centroid is summed from its documents into a second set of
+// centroids, allocated once and swapped with the first.
+
+package edu.bu.sbahr;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class KMeans {
+
+	/** The document vectors */
+	private DocumentVectors vectors;
+	/** Number of clusters */
+	private int k;
+	/** The normalized centroids, dense over the terms */
+	private double[][] centroids;
+	/** Where the next centroids are summed */
+	private double[][] next;
+	/** The documents of each cluster, in order, and where each cluster starts */
+	private int[] members;
+	private int[] clusterStart;
+	/** Cluster of each document, and its cosine with the centroid */
+	protected int[] assignment;
+	protected double[] similarity;
+
+	/**
+	 * Construct a new clustering
+	 *
+	 * @param vectors - the normalized document vectors
+	 * @param k - the number of clusters
+	 */
+	public KMeans(DocumentVectors vectors, int k) {
+		this.vectors = vectors;
+		this.k = Math.min(k, vectors.numDocs);
+		this.assignment = new int[vectors.numDocs];
+		this.similarity = new double[vectors.numDocs];
+	}
+
+	/**
+	 * Clusters the documents.
+	 *
+	 * @param maxIterations - the most assignment steps to run
+	 * @param threads - the number of threads
+	 * @param seed - the seed of the k-means++ seeding
+	 *
+	 * @return The number of assignment steps run.
+	 */
+	public int run(int maxIterations, int threads, long seed) {
+		if (k == 0)
+			return 0;
+		seed(new Random(seed));
+
+		next = new double[k][vectors.numTerms];
+		members = new int[vectors.numDocs];
+		clusterStart = new int[k + 1];
+
+		int numParts = Math.max(Math.min(threads, vectors.numDocs), 1);
+		List<Partition> parts = new ArrayList<Partition>();
+		for (int p = 0; p < numParts; p++) {
+			parts.add(new Partition((int) ((long) vectors.numDocs * p / numParts),
+							(int) ((long) vectors.numDocs * (p + 1) / numParts)));
+		}
+		ForkJoinPool pool = new ForkJoinPool(numParts);
+		try {
+			int iteration = 0;
+			while (iteration < maxIterations) {
+				iteration++;
+
+				pool.invoke(new Assign(parts));
+				long changed = 0;
+				for (Partition part : parts) {
+					changed += part.changed;
+				}
+
+				// list the documents of each cluster, in document order
+				Arrays.fill(clusterStart, 0);
+				for (int d = 0; d < vectors.numDocs; d++) {
+					clusterStart[assignment[d] + 1]++;
+				}
+				for (int c = 0; c < k; c++) {
+					clusterStart[c + 1] += clusterStart[c];
+				}
+				int[] fill = Arrays.copyOf(clusterStart, k);
+				for (int d = 0; d < vectors.numDocs; d++) {
+					members[fill[assignment[d]]++] = d;
+				}
+				pool.invoke(new Update(0, k));
+
+				if (changed == 0 && iteration > 1)
+					break;
+			}
+			return iteration;
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Writes the cluster of each document.
+	 *
+	 * @param path - the file name, without the compression extension
+	 * @param documents - the documents, for their names
+	 * @param compression - the compression of the file
+	 * @throws IOException - error writing
+	 */
+	public void write(String path, List<Document> documents, Compression compression) throws IOException {
+		Writer writer = new OutputStreamWriter(compression.open(path), Settings.charset);
+		try {
+			writer.append("document,cluster,cosine\n");
+			for (int d = 0; d < assignment.length; d++) {
+				writer.append(documents.get(d).documentName.replaceAll(".txt", ""));
+				writer.append(',');
+				writer.append(String.valueOf(assignment[d]));
+				writer.append(',');
+				writer.append(String.valueOf(similarity[d]));
+				writer.append('\n');
+			}
+			writer.flush();
+		}
+		finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Picks the initial centroids with k-means++: each next centroid is a
+	 * document picked with probability proportional to its squared distance
+	 * to the closest centroid so far, which for unit vectors is 2 (1 - cosine).
+	 */
+	private void seed(Random random) {
+		centroids = new double[k][];
+		double[] best = new double[vectors.numDocs];
+
+		// the first seed is any document with weighted terms
+		int weighted = 0;
+		for (int d = 0; d < vectors.numDocs; d++) {
+			if (vectors.norms[d] > 0)
+				weighted++;
+		}
+		int first = 0;
+		if (weighted > 0) {
+			int pick = random.nextInt(weighted);
+			while (vectors.norms[first] == 0 || pick-- > 0) {
+				first++;
+			}
+		}
+		centroids[0] = dense(first);
+		for (int d = 0; d < vectors.numDocs; d++) {
+			best[d] = vectors.dot(d, centroids[0]);
+		}
+
+		for (int c = 1; c < k; c++) {
+			double total = 0;
+			for (int d = 0; d < vectors.numDocs; d++) {
+				total += weight(d, best[d]);
+			}
+
+			int pick = random.nextInt(vectors.numDocs);
+			if (total > 0) {
+				double target = random.nextDouble() * total;
+				for (int d = 0; d < vectors.numDocs; d++) {
+					double w = weight(d, best[d]);
+					target -= w;
+					if (w > 0 && target <= 0) {
+						pick = d;
+						break;
+					}
+				}
+			}
+
+			centroids[c] = dense(pick);
+			for (int d = 0; d < vectors.numDocs; d++) {
+				best[d] = Math.max(best[d], vectors.dot(d, centroids[c]));
+			}
+		}
+	}
+
+	/**
+	 * @return The chance of picking a document as the next centroid, up to a
+	 *         constant, none for a document without any weighted terms.
+	 */
+	private double weight(int d, double best) {
+		if (vectors.norms[d] == 0)
+			return 0;
+		return Math.max(1 - best, 0);
+	}
+
+	/**
+	 * @return The vector of a document as a dense array.
+	 */
+	private double[] dense(int d) {
+		double[] v = new double[vectors.numTerms];
+		for (int i = vectors.docStart[d]; i < vectors.docStart[d + 1]; i++) {
+			v[vectors.terms[i]] = vectors.weights[i];
+		}
+		return v;
+	}
+
+	/**
+	 * Scales a vector to unit length.
+	 *
+	 * @return Whether the vector had a length.
+	 */
+	private static boolean normalize(double[] v) {
+		double norm = 0;
+		for (double x : v) {
+			norm += x * x;
+		}
+		if (norm == 0)
+			return false;
+		norm = Math.sqrt(norm);
+		for (int i = 0; i < v.length; i++) {
+			v[i] /= norm;
+		}
+		return true;
+	}
+
+	/**
+	 * Sums the next centroid of a cluster from its documents. An empty
+	 * cluster keeps its centroid.
+	 */
+	private void update(int c) {
+		if (clusterStart[c] == clusterStart[c + 1])
+			return;
+		double[] sum = next[c];
+		Arrays.fill(sum, 0);
+		for (int m = clusterStart[c]; m < clusterStart[c + 1]; m++) {
+			int d = members[m];
+			for (int i = vectors.docStart[d]; i < vectors.docStart[d + 1]; i++) {
+				sum[vectors.terms[i]] += vectors.weights[i];
+			}
+		}
+		if (normalize(sum)) {
+			next[c] = centroids[c];
+			centroids[c] = sum;
+		}
+	}
+
+	/**
+	 * A range of documents, and how many changed cluster in the last step.
+	 */
+	private class Partition {
+		int from;
+		int to;
+		long changed;
+
+		Partition(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		void assign() {
+			changed = 0;
+			for (int d = from; d < to; d++) {
+				int bestCluster = 0;
+				double bestSimilarity = Double.NEGATIVE_INFINITY;
+				for (int c = 0; c < k; c++) {
+					double s = vectors.dot(d, centroids[c]);
+					if (s > bestSimilarity) {
+						bestSimilarity = s;
+						bestCluster = c;
+					}
+				}
+				if (assignment[d] != bestCluster)
+					changed++;
+				assignment[d] = bestCluster;
+				similarity[d] = bestSimilarity;
+			}
+		}
+	}
+
+	/**
+	 * Assigns every partition in parallel.
+	 */
+	private static class Assign extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private List<Partition> parts;
+
+		Assign(List<Partition> parts) {
+			this.parts = parts;
+		}
+
+		@Override
+		protected void compute() {
+			if (parts.size() == 1) {
+				parts.get(0).assign();
+				return;
+			}
+			int mid = parts.size() / 2;
+			invokeAll(new Assign(parts.subList(0, mid)), new Assign(parts.subList(mid, parts.size())));
+		}
+	}
+
+	/**
+	 * Splits a range of clusters until there's one left, then updates it.
+	 */
+	private class Update extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int from;
+		private int to;
+
+		Update(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				if (to > from)
+					update(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Update(from, mid), new Update(mid, to));
+		}
+	}
+}
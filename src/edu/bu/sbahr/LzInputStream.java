@@ -0,0 +1,140 @@
+// This class reads a stream written by LzOutputStream, decompressing it one
+// block at a time.
+
+package edu.bu.sbahr;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+public class LzInputStream extends InputStream {
+
+	private DataInputStream in;
+	/** The compressed block */
+	private byte[] compressed = new byte[LzOutputStream.maxCompressedLength(LzOutputStream.BLOCK_SIZE)];
+	/** The decompressed block, and the position read up to */
+	private byte[] block = new byte[LzOutputStream.BLOCK_SIZE];
+	private int length;
+	private int position;
+
+	/**
+	 * Construct a new stream
+	 * 
+	 * @param in - the compressed stream
+	 */
+	public LzInputStream(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == length && !nextBlock())
+			return -1;
+		return block[position++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (position == length && !nextBlock())
+			return -1;
+		int n = Math.min(len, length - position);
+		System.arraycopy(block, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return length - position;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Reads and decompresses the next block.
+	 * 
+	 * @return Whether there was another block.
+	 */
+	private boolean nextBlock() throws IOException {
+		int rawLength;
+		try {
+			rawLength = in.readInt();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		int n = in.readInt();
+		if (rawLength > block.length || n > compressed.length)
+			throw new IOException("Corrupt block of " + rawLength + " bytes");
+		in.readFully(compressed, 0, n);
+		length = decompress(compressed, n, block);
+		position = 0;
+		if (length != rawLength)
+			throw new IOException("Corrupt block, expected " + rawLength + " bytes, got " + length);
+		return true;
+	}
+
+	/**
+	 * Decompresses a block.
+	 * 
+	 * @param src - the compressed bytes
+	 * @param len - the number of compressed bytes
+	 * @param dst - the decompressed bytes
+	 * 
+	 * @return The number of decompressed bytes.
+	 */
+	private static int decompress(byte[] src, int len, byte[] dst) throws IOException {
+		int ip = 0;
+		int op = 0;
+		try {
+			while (true) {
+				int token = src[ip++] & 0xff;
+
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						litLen += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, ip, dst, op, litLen);
+				ip += litLen;
+				op += litLen;
+
+				// the last sequence has no match
+				if (ip == len)
+					return op;
+
+				int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+				ip += 2;
+				int matchLen = token & 15;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[ip++] & 0xff;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += LzOutputStream.MIN_MATCH;
+
+				// the match may overlap what it copies, so copy byte by byte
+				int from = op - offset;
+				if (from < 0)
+					throw new IOException("Corrupt block, bad offset " + offset);
+				for (int k = 0; k < matchLen; k++) {
+					dst[op++] = dst[from + k];
+				}
+			}
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Corrupt block", e);
+		}
+	}
+}
@@ -0,0 +1,182 @@
+// This class compresses a stream with a fast LZ77 scheme in the style of LZ4,
+// trading compression ratio for speed. The stream is a sequence of blocks, each
+// written as its uncompressed length, its compressed length and the compressed
+// bytes. A block is a sequence of literal runs and back references:
+//
+// token (literal length << 4 | match length - 4), [literal length bytes],
+// literals, offset (2 bytes, little endian), [match length bytes]
+//
+// where a length of 15 in the token continues in following bytes, each adding
+// up to 255. The last sequence of a block only has literals. LzInputStream
+// reads the stream back.
+
+package edu.bu.sbahr;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+public class LzOutputStream extends FilterOutputStream {
+
+	/** Uncompressed size of a block */
+	protected static final int BLOCK_SIZE = 1 << 18;
+	/** Shortest back reference */
+	protected static final int MIN_MATCH = 4;
+	/** Furthest back reference */
+	protected static final int MAX_OFFSET = 65535;
+	/** Number of bits of the match finder's hash */
+	private static final int HASH_BITS = 14;
+
+	/** The block being filled */
+	private byte[] block = new byte[BLOCK_SIZE];
+	private int length;
+	/** The compressed block */
+	private byte[] compressed = new byte[maxCompressedLength(BLOCK_SIZE)];
+	/** Last position of each hashed 4 byte sequence */
+	private int[] table = new int[1 << HASH_BITS];
+	private DataOutputStream data;
+
+	/**
+	 * Construct a new stream
+	 *
+	 * @param out - the stream the compressed blocks go to
+	 */
+	public LzOutputStream(OutputStream out) {
+		super(out);
+		data = new DataOutputStream(out);
+	}
+
+	/**
+	 * @return The largest size a block of the given length compresses to.
+	 */
+	protected static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == BLOCK_SIZE)
+			flushBlock();
+		block[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == BLOCK_SIZE)
+				flushBlock();
+			int n = Math.min(len, BLOCK_SIZE - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBlock();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBlock();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Compresses and writes the current block.
+	 */
+	private void flushBlock() throws IOException {
+		if (length == 0)
+			return;
+		int n = compress(block, length, compressed);
+		data.writeInt(length);
+		data.writeInt(n);
+		data.write(compressed, 0, n);
+		length = 0;
+	}
+
+	/**
+	 * Compresses a block.
+	 *
+	 * @param src - the bytes
+	 * @param len - the number of bytes
+	 * @param dst - the compressed bytes, of at least maxCompressedLength
+	 *
+	 * @return The number of compressed bytes.
+	 */
+	private int compress(byte[] src, int len, byte[] dst) {
+		Arrays.fill(table, -1);
+		int op = 0;
+		int anchor = 0;
+		int i = 0;
+		// leave room to read the 4 bytes at the last position
+		int limit = len - MIN_MATCH;
+
+		while (i < limit) {
+			int seq = readInt(src, i);
+			int h = (seq * 0x9e3779b1) >>> (32 - HASH_BITS);
+			int ref = table[h];
+			table[h] = i;
+
+			if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != seq) {
+				i++;
+				continue;
+			}
+
+			int matchLen = MIN_MATCH;
+			while (i + matchLen < len && src[ref + matchLen] == src[i + matchLen]) {
+				matchLen++;
+			}
+
+			int token = op;
+			op = writeLiterals(src, anchor, i - anchor, dst, op);
+			dst[op++] = (byte) (i - ref);
+			dst[op++] = (byte) ((i - ref) >>> 8);
+			dst[token] |= (byte) Math.min(matchLen - MIN_MATCH, 15);
+			if (matchLen - MIN_MATCH >= 15)
+				op = writeLength(dst, op, matchLen - MIN_MATCH - 15);
+
+			i += matchLen;
+			anchor = i;
+		}
+
+		return writeLiterals(src, anchor, len - anchor, dst, op);
+	}
+
+	/**
+	 * Writes the token and the literals of a sequence. The match length in
+	 * the token is left 0 for the caller to fill in.
+	 */
+	private static int writeLiterals(byte[] src, int start, int litLen, byte[] dst, int op) {
+		dst[op++] = (byte) (Math.min(litLen, 15) << 4);
+		if (litLen >= 15)
+			op = writeLength(dst, op, litLen - 15);
+		System.arraycopy(src, start, dst, op, litLen);
+		return op + litLen;
+	}
+
+	/**
+	 * Writes the part of a length beyond the 15 the token holds.
+	 */
+	private static int writeLength(byte[] dst, int op, int rest) {
+		while (rest >= 255) {
+			dst[op++] = (byte) 255;
+			rest -= 255;
+		}
+		dst[op++] = (byte) rest;
+		return op;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+}
@@ -0,0 +1,210 @@
+// This class keeps the phase timings and counters of a run, so we can tell
+// which stage got slower. The metrics are exposed through JMX while the
+// generator runs and written as a JSON summary at the end of the run.
+
+package edu.bu.sbahr;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class Metrics implements MetricsMXBean {
+
+	/** The phases of a run */
+	public enum Phase {
+		DISCOVERY, READ, TOKENIZE, STOP_WORDS, STEM, COUNT, VOCABULARY, ASSEMBLE, WEIGHTING, WRITE, SIMILARITY, INDEX, CLUSTER
+	}
+
+	/** The metrics of this run */
+	public static final Metrics INSTANCE = new Metrics();
+
+	/** Nanoseconds spent in each phase */
+	private final AtomicLongArray phaseNanos = new AtomicLongArray(Phase.values().length);
+	/** Counters */
+	protected final AtomicLong bytesRead = new AtomicLong();
+	protected final AtomicLong tokens = new AtomicLong();
+	protected final AtomicLong stopWordsDropped = new AtomicLong();
+	protected final AtomicLong uniqueStems = new AtomicLong();
+	protected final AtomicLong stemCacheHits = new AtomicLong();
+	protected final AtomicLong exactDuplicates = new AtomicLong();
+	protected final AtomicLong nearDuplicates = new AtomicLong();
+
+	/** The thread that runs the generator */
+	private final long threadId = Thread.currentThread().getId();
+	/** When the run started, and the bytes allocated by then */
+	private long startNanos = System.nanoTime();
+	private long startAllocated = allocatedBytes();
+
+	/**
+	 * Registers the metrics with the platform MBean server, and restarts the
+	 * run clock.
+	 */
+	public static void register() {
+		INSTANCE.startNanos = System.nanoTime();
+		INSTANCE.startAllocated = INSTANCE.allocatedBytes();
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+							new ObjectName("edu.bu.sbahr:type=Metrics"));
+		}
+		catch (JMException e) {
+			System.out.println("Metrics not available through JMX: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return The current time, to be handed to stop.
+	 */
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Adds the time since start to a phase.
+	 *
+	 * @param phase - the phase
+	 * @param start - the time returned by start
+	 *
+	 * @return The current time, so phases can be timed back to back.
+	 */
+	public static long stop(Phase phase, long start) {
+		long now = System.nanoTime();
+		INSTANCE.phaseNanos.addAndGet(phase.ordinal(), now - start);
+		return now;
+	}
+
+	/**
+	 * Adds nanoseconds that were measured elsewhere to a phase.
+	 *
+	 * @param phase - the phase
+	 * @param nanos - the nanoseconds
+	 */
+	public static void add(Phase phase, long nanos) {
+		INSTANCE.phaseNanos.addAndGet(phase.ordinal(), nanos);
+	}
+
+	/**
+	 * Writes the metrics as a JSON object.
+	 *
+	 * @param f - the summary file
+	 * @throws IOException - error writing
+	 */
+	public static void writeSummary(File f) throws IOException {
+		Metrics m = INSTANCE;
+		FileWriter writer = new FileWriter(f);
+		writer.append("{\n");
+		// what the output files were written in, to read them back with
+		writer.append("  \"encoding\": \"" + Settings.charset.name() + "\",\n");
+		writer.append("  \"elapsedMillis\": " + (System.nanoTime() - m.startNanos) / 1000000 + ",\n");
+		writer.append("  \"phaseMillis\": {");
+		String sep = "\n";
+		for (Map.Entry<String, Long> e : m.getPhaseMillis().entrySet()) {
+			writer.append(sep + "    \"" + e.getKey() + "\": " + e.getValue());
+			sep = ",\n";
+		}
+		writer.append("\n  },\n");
+		writer.append("  \"bytesRead\": " + m.getBytesRead() + ",\n");
+		writer.append("  \"tokens\": " + m.getTokens() + ",\n");
+		writer.append("  \"stopWordsDropped\": " + m.getStopWordsDropped() + ",\n");
+		writer.append("  \"uniqueStems\": " + m.getUniqueStems() + ",\n");
+		writer.append("  \"stemCacheHits\": " + m.getStemCacheHits() + ",\n");
+		writer.append("  \"exactDuplicates\": " + m.getExactDuplicates() + ",\n");
+		writer.append("  \"nearDuplicates\": " + m.getNearDuplicates() + ",\n");
+		writer.append("  \"allocatedBytes\": " + m.getAllocatedBytes() + ",\n");
+		writer.append("  \"allocationRate\": " + m.getAllocationRate() + "\n");
+		writer.append("}\n");
+		writer.flush();
+		writer.close();
+	}
+
+	public Map<String, Long> getPhaseMillis() {
+		Map<String, Long> millis = new LinkedHashMap<String, Long>();
+		for (Phase p : Phase.values()) {
+			if (measured(p))
+				millis.put(p.name().toLowerCase(), phaseNanos.get(p.ordinal()) / 1000000);
+		}
+		return millis;
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getTokens() {
+		return tokens.get();
+	}
+
+	public long getStopWordsDropped() {
+		return stopWordsDropped.get();
+	}
+
+	public long getUniqueStems() {
+		return uniqueStems.get();
+	}
+
+	public long getStemCacheHits() {
+		return Settings.stemCacheSize > 0 && Settings.hashBits == 0 ? stemCacheHits.get() : -1;
+	}
+
+	public long getExactDuplicates() {
+		return exactDuplicates.get();
+	}
+
+	public long getNearDuplicates() {
+		return nearDuplicates.get();
+	}
+
+	public long getAllocatedBytes() {
+		long now = allocatedBytes();
+		return now < 0 ? -1 : now - startAllocated;
+	}
+
+	public double getAllocationRate() {
+		long bytes = getAllocatedBytes();
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return bytes < 0 || seconds <= 0 ? -1 : bytes / seconds;
+	}
+
+	/**
+	 * The stop word, stem and count phases are only timed per token if asked
+	 * for, otherwise their time is part of tokenizing.
+	 *
+	 * @param phase - the phase
+	 *
+	 * @return Whether the phase was timed on its own.
+	 */
+	private static boolean measured(Phase phase) {
+		switch (phase) {
+			case STOP_WORDS:
+			case STEM:
+			case COUNT:
+				return Settings.tokenTimings;
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Gets the bytes allocated by the generator thread, if the JVM can tell.
+	 *
+	 * @return The allocated bytes, -1 if not supported.
+	 */
+	private long allocatedBytes() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) threads;
+			if (sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+				return sun.getThreadAllocatedBytes(threadId);
+			}
+		}
+		return -1;
+	}
+}
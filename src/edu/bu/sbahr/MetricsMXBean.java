@@ -0,0 +1,45 @@
+// This interface exposes the generator's metrics through JMX, under the name
+// edu.bu.sbahr:type=Metrics.
+
+package edu.bu.sbahr;
+
+import java.util.Map;
+
+public interface MetricsMXBean {
+
+	/**
+	 * @return The milliseconds spent in each phase, the stop word, stem and
+	 *         count phases only if timed per token.
+	 */
+	Map<String, Long> getPhaseMillis();
+
+	/** @return The bytes read from the documents. */
+	long getBytesRead();
+
+	/** @return The tokens read from the documents. */
+	long getTokens();
+
+	/** @return The tokens dropped as stop words. */
+	long getStopWordsDropped();
+
+	/**
+	 * @return The distinct stems (and n-grams) across all documents, -1 if
+	 *         only sketched.
+	 */
+	long getUniqueStems();
+
+	/** @return The stems served from the stem cache, -1 if not cached. */
+	long getStemCacheHits();
+
+	/** @return The documents skipped as exact copies. */
+	long getExactDuplicates();
+
+	/** @return The documents found to be near copies. */
+	long getNearDuplicates();
+
+	/** @return The bytes allocated by the generator thread. */
+	long getAllocatedBytes();
+
+	/** @return The bytes allocated per second by the generator thread. */
+	double getAllocationRate();
+}
@@ -0,0 +1,25 @@
+// This interface reads the term-document counts one term (row of the matrix)
+// at a time, in the order of the vocabulary, so the matrix can be written
+// whether the counts are still in memory or were spilled to disk.
+
+package edu.bu.sbahr;
+
+import java.io.IOException;
+
+public interface RowSource {
+
+	/**
+	 * Reads the counts of the next term of the vocabulary.
+	 * 
+	 * @param counts - filled with the count of the term in each document
+	 * @throws IOException - error reading
+	 */
+	void next(int[] counts) throws IOException;
+
+	/**
+	 * Releases whatever the rows were read from.
+	 * 
+	 * @throws IOException - error closing
+	 */
+	void close() throws IOException;
+}
@@ -0,0 +1,168 @@
+// This class holds the tunable settings of the generator. Every setting is read
+// from a system property so that the interactive console stays the same, e.g.
+//
+// java -Dtdg.minDf=2 -Dtdg.maxTerms=50000 edu.bu.sbahr.TDGenerator
+//
+// Settings that are not supplied fall back to defaults that reproduce the
+// original output.
+
+package edu.bu.sbahr;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+public class Settings {
+
+	/** Minimum number of documents a term must appear in to be kept */
+	public static int minDocFreq = intProperty("tdg.minDf", 1);
+	/**
+	 * Maximum document frequency of a kept term. Values up to 1.0 are a
+	 * proportion of the documents, larger values an absolute count.
+	 */
+	public static double maxDocFreq = doubleProperty("tdg.maxDf", 1.0);
+	/** Maximum size of the vocabulary, 0 for no cap */
+	public static int maxTerms = intProperty("tdg.maxTerms", 0);
+	/** Rank terms by total frequency instead of document frequency */
+	public static boolean rankByTotal = "total".equalsIgnoreCase(System.getProperty("tdg.rankBy", "df"));
+	/** Longest n-gram counted as a term, 1 for single stems only */
+	public static int ngrams = Math.max(intProperty("tdg.ngrams", 1), 1);
+	/**
+	 * Hash terms into 2^hashBits buckets instead of keeping a dictionary, 0
+	 * to disable feature hashing
+	 */
+	public static int hashBits = Math.min(Math.max(intProperty("tdg.hashBits", 0), 0), 30);
+	/**
+	 * Maximum number of words whose stem is cached, 0 to stem every word.
+	 * Feature hashing never uses the cache.
+	 */
+	public static int stemCacheSize = Math.max(intProperty("tdg.stemCacheSize", 0), 0);
+	/**
+	 * Estimated bytes the document counts may take before they are spilled
+	 * to disk, 0 for no budget
+	 */
+	public static long memoryBudget = intProperty("tdg.memoryBudgetMb", 0) * 1024L * 1024L;
+	/** Directory the spilled counts go to, null for the temp directory */
+	public static File spillDirectory = System.getProperty("tdg.spillDir") == null ? null : new File(
+					System.getProperty("tdg.spillDir"));
+	/** Store the assembled counts off the heap */
+	public static boolean offHeap = Boolean.getBoolean("tdg.offHeap");
+	/** Compression of the matrix files */
+	public static Compression compression = Compression.forName(System.getProperty("tdg.compression", "none"));
+	/** Skip documents whose content is a copy of a document already parsed */
+	public static boolean skipDuplicates = Boolean.getBoolean("tdg.skipDuplicates");
+	/**
+	 * Estimated Jaccard similarity of the stems at which a document counts as
+	 * a near copy, 0 to not look for near copies
+	 */
+	public static double nearDupThreshold = doubleProperty("tdg.nearDupThreshold", 0);
+	/** Drop near copies instead of only reporting them */
+	public static boolean collapseNearDuplicates = "collapse".equalsIgnoreCase(System.getProperty(
+					"tdg.nearDupAction", "flag"));
+	/** Number of LSH bands, and of MinHash values in each band */
+	public static int minHashBands = Math.max(intProperty("tdg.minHashBands", 16), 1);
+	public static int minHashRows = Math.max(intProperty("tdg.minHashRows", 4), 1);
+	/** Number of threads for the parallel jobs */
+	public static int threads = Math.max(intProperty("tdg.threads", Runtime.getRuntime().availableProcessors()), 1);
+	/** Write the pairs of documents whose cosine similarity reaches the threshold */
+	public static boolean similarity = Boolean.getBoolean("tdg.similarity");
+	public static double similarityThreshold = doubleProperty("tdg.similarityThreshold", 0.5);
+	/** Number of documents scored by one similarity task */
+	public static int similarityBlock = intProperty("tdg.similarityBlock", 256);
+	/** Write an approximate nearest neighbor index of the documents */
+	public static boolean annIndex = Boolean.getBoolean("tdg.ann");
+	/** Number of hash tables of the index, and of bits of each table's codes */
+	public static int annTables = Math.max(intProperty("tdg.annTables", 8), 1);
+	public static int annBits = Math.min(Math.max(intProperty("tdg.annBits", 12), 1), 31);
+	/** Seed of the index's random hyperplanes */
+	public static long annSeed = intProperty("tdg.annSeed", 42);
+	/** Number of clusters of documents to find with k-means, 0 to disable */
+	public static int clusters = Math.max(intProperty("tdg.clusters", 0), 0);
+	/** Most k-means assignment steps run */
+	public static int clusterIterations = Math.max(intProperty("tdg.clusterIterations", 20), 1);
+	/** Seed of the k-means++ seeding */
+	public static long clusterSeed = intProperty("tdg.clusterSeed", 42);
+	/** Serve the idf from Count-Min sketches instead of exact frequencies */
+	public static boolean approximateDf = Boolean.getBoolean("tdg.approximateDf");
+	/** Number of rows of the sketches, and of counters in each row */
+	public static int sketchDepth = Math.max(intProperty("tdg.sketchDepth", 4), 1);
+	public static int sketchWidth = Math.max(intProperty("tdg.sketchWidth", 1 << 16), 1);
+	/** Number of most frequent terms tracked exactly */
+	public static int heavyHitters = Math.max(intProperty("tdg.heavyHitters", 100), 0);
+	/** Compare sketches of several widths with the exact frequencies */
+	public static boolean sketchReport = Boolean.getBoolean("tdg.sketchReport");
+	/** Read words of letters of every script, not just a-z */
+	public static boolean unicodeTokens = "unicode".equalsIgnoreCase(System.getProperty("tdg.tokenizer", "ascii"));
+	/** Drop the accents of the letters, when reading every script */
+	public static boolean stripAccents = Boolean.getBoolean("tdg.stripAccents");
+	/**
+	 * Character set the documents are read in and the files written in: the
+	 * platform's, or UTF-8 when reading every script
+	 */
+	public static Charset charset = charsetProperty("tdg.encoding", unicodeTokens ? "UTF-8" : null);
+	/** Time the stop word, stem and count phases of every token */
+	public static boolean tokenTimings = Boolean.getBoolean("tdg.tokenTimings");
+
+	/**
+	 * Reads an integer system property.
+	 *
+	 * @param key - the property name
+	 * @param def - the value used when the property is missing
+	 *
+	 * @return The value of the property.
+	 */
+	protected static int intProperty(String key, int def) {
+		String value = System.getProperty(key);
+		if (value == null || value.trim().equals(""))
+			return def;
+		try {
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e) {
+			System.out.println("Ignoring invalid value for " + key + ": " + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Reads a decimal system property.
+	 *
+	 * @param key - the property name
+	 * @param def - the value used when the property is missing
+	 *
+	 * @return The value of the property.
+	 */
+	protected static double doubleProperty(String key, double def) {
+		String value = System.getProperty(key);
+		if (value == null || value.trim().equals(""))
+			return def;
+		try {
+			return Double.parseDouble(value.trim());
+		}
+		catch (NumberFormatException e) {
+			System.out.println("Ignoring invalid value for " + key + ": " + value);
+			return def;
+		}
+	}
+
+	/**
+	 * Reads a character set system property.
+	 *
+	 * @param key - the property name
+	 * @param def - the name used when the property is missing, null for the
+	 *            platform's character set
+	 *
+	 * @return The character set.
+	 */
+	protected static Charset charsetProperty(String key, String def) {
+		String value = System.getProperty(key, def);
+		if (value == null || value.trim().equals(""))
+			return Charset.defaultCharset();
+		try {
+			return Charset.forName(value.trim());
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("Ignoring invalid value for " + key + ": " + value);
+			return Charset.defaultCharset();
+		}
+	}
+}
@@ -0,0 +1,215 @@
+// This class finds every pair of documents whose cosine similarity reaches a
+// threshold. Rather than comparing every pair, each document's terms are
+// looked up in an inverted index (the documents of each term), so only pairs
+// sharing a term are ever scored. The documents are split into blocks that
+// are scored in parallel on a fork-join pool.
+
+package edu.bu.sbahr;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class SimilarityJob {
+
+	/** The document vectors */
+	private DocumentVectors vectors;
+	/** Inverted index: where each term's documents start */
+	private int[] termStart;
+	/** Documents of each term, in increasing order, and their weights */
+	private int[] postingDocs;
+	private float[] postingWeights;
+	/** The lowest similarity reported */
+	private double threshold;
+	/** Number of documents scored by one task */
+	private int blockSize;
+	/** The pairs found by each block */
+	private Pairs[] found;
+	/** Scores and touched documents, reused by the blocks of a thread */
+	private ThreadLocal<double[]> scratchScores = new ThreadLocal<double[]>();
+	private ThreadLocal<int[]> scratchTouched = new ThreadLocal<int[]>();
+
+	/**
+	 * Construct a new job
+	 *
+	 * @param vectors - the normalized document vectors
+	 * @param threshold - the lowest similarity reported
+	 * @param blockSize - the number of documents scored by one task
+	 */
+	public SimilarityJob(DocumentVectors vectors, double threshold, int blockSize) {
+		this.vectors = vectors;
+		this.threshold = threshold;
+		this.blockSize = Math.max(blockSize, 1);
+
+		// invert the document vectors
+		termStart = new int[vectors.numTerms + 1];
+		for (int k = 0; k < vectors.terms.length; k++) {
+			termStart[vectors.terms[k] + 1]++;
+		}
+		for (int t = 0; t < vectors.numTerms; t++) {
+			termStart[t + 1] += termStart[t];
+		}
+		int[] next = Arrays.copyOf(termStart, vectors.numTerms);
+		postingDocs = new int[vectors.terms.length];
+		postingWeights = new float[vectors.terms.length];
+		for (int d = 0; d < vectors.numDocs; d++) {
+			for (int k = vectors.docStart[d]; k < vectors.docStart[d + 1]; k++) {
+				int t = vectors.terms[k];
+				postingDocs[next[t]] = d;
+				postingWeights[next[t]] = vectors.weights[k];
+				next[t]++;
+			}
+		}
+	}
+
+	/**
+	 * Scores all pairs of documents.
+	 *
+	 * @param threads - the number of threads
+	 */
+	public void run(int threads) {
+		int numBlocks = (vectors.numDocs + blockSize - 1) / blockSize;
+		found = new Pairs[numBlocks];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try {
+			pool.invoke(new Blocks(0, numBlocks));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Writes the pairs found, one per line, by document order.
+	 *
+	 * @param path - the file name, without the compression extension
+	 * @param documents - the documents, for their names
+	 * @param compression - the compression of the file
+	 *
+	 * @return The number of pairs written.
+	 * @throws IOException - error writing
+	 */
+	public long write(String path, List<Document> documents, Compression compression) throws IOException {
+		Writer writer = new OutputStreamWriter(compression.open(path), Settings.charset);
+		long pairs = 0;
+		try {
+			writer.append("documentA,documentB,cosine\n");
+			for (Pairs p : found) {
+				for (int k = 0; k < p.size; k++) {
+					writer.append(documents.get(p.a[k]).documentName.replaceAll(".txt", ""));
+					writer.append(',');
+					writer.append(documents.get(p.b[k]).documentName.replaceAll(".txt", ""));
+					writer.append(',');
+					writer.append(String.valueOf(p.similarity[k]));
+					writer.append('\n');
+				}
+				pairs += p.size;
+			}
+			writer.flush();
+		}
+		finally {
+			writer.close();
+		}
+		return pairs;
+	}
+
+	/**
+	 * Scores every document of a block against the documents after it.
+	 *
+	 * @param block - the block
+	 *
+	 * @return The pairs reaching the threshold.
+	 */
+	private Pairs scoreBlock(int block) {
+		Pairs pairs = new Pairs();
+		double[] scores = scratchScores.get();
+		int[] touched = scratchTouched.get();
+		if (scores == null) {
+			scores = new double[vectors.numDocs];
+			touched = new int[vectors.numDocs];
+			scratchScores.set(scores);
+			scratchTouched.set(touched);
+		}
+
+		int end = Math.min((block + 1) * blockSize, vectors.numDocs);
+		for (int a = block * blockSize; a < end; a++) {
+			int numTouched = 0;
+			for (int k = vectors.docStart[a]; k < vectors.docStart[a + 1]; k++) {
+				int t = vectors.terms[k];
+				float w = vectors.weights[k];
+				if (w == 0)
+					continue;
+				// only the documents after a, each pair is scored once
+				int from = Arrays.binarySearch(postingDocs, termStart[t], termStart[t + 1], a) + 1;
+				for (int p = from; p < termStart[t + 1]; p++) {
+					int b = postingDocs[p];
+					if (scores[b] == 0)
+						touched[numTouched++] = b;
+					scores[b] += w * postingWeights[p];
+				}
+			}
+
+			// pairs come out of the scan unordered, sort them by document
+			Arrays.sort(touched, 0, numTouched);
+			for (int i = 0; i < numTouched; i++) {
+				int b = touched[i];
+				if (scores[b] >= threshold)
+					pairs.add(a, b, (float) scores[b]);
+				scores[b] = 0;
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Splits a range of blocks until there's one left, then scores it.
+	 */
+	private class Blocks extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private int from;
+		private int to;
+
+		Blocks(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= 1) {
+				// no blocks at all without documents
+				if (to > from)
+					found[from] = scoreBlock(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new Blocks(from, mid), new Blocks(mid, to));
+		}
+	}
+
+	/**
+	 * A growable list of scored pairs.
+	 */
+	private static class Pairs {
+		int[] a = new int[16];
+		int[] b = new int[16];
+		float[] similarity = new float[16];
+		int size;
+
+		void add(int docA, int docB, float s) {
+			if (size == a.length) {
+				a = Arrays.copyOf(a, size * 2);
+				b = Arrays.copyOf(b, size * 2);
+				similarity = Arrays.copyOf(similarity, size * 2);
+			}
+			a[size] = docA;
+			b[size] = docB;
+			similarity[size] = s;
+			size++;
+		}
+	}
+}
@@ -0,0 +1,354 @@
+// This class keeps the term counts of documents on disk once the documents in
+// memory outgrow the memory budget. Each spill writes one run: the terms of
+// the spilled documents in sorted order, each followed by the documents it
+// appears in and its count there. At write time the runs are merged, so the
+// matrix is read one term at a time instead of all at once. Runs are merged
+// a bounded number at a time, in as many passes as it takes.
+
+package edu.bu.sbahr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+public class SpillStore {
+
+	/** Estimated bytes of a term map entry, not counting the term's chars */
+	protected static final int ENTRY_BYTES = 96;
+	/** Estimated bytes of a feature count slot */
+	protected static final int SLOT_BYTES = 8;
+	/** Most runs read at once by a merge */
+	protected static final int MAX_MERGE = 64;
+
+	/** The run files */
+	private List<File> runs = new ArrayList<File>();
+	/** The directory runs are written to */
+	private File directory;
+	/** Number of documents whose counts were spilled */
+	protected int spilledDocs;
+
+	/**
+	 * Construct a new spill store
+	 *
+	 * @param directory - where runs are written, null for the temp directory
+	 */
+	public SpillStore(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Estimates the bytes the counts of a document take on the heap.
+	 *
+	 * @param d - the document
+	 *
+	 * @return The estimated bytes.
+	 */
+	public static long estimateBytes(Document d) {
+		long bytes = 0;
+		if (d.termFrequency != null) {
+			for (String term : d.termFrequency.keySet()) {
+				bytes += ENTRY_BYTES + term.length();
+			}
+		}
+		if (d.featureCounts != null) {
+			bytes += (long) d.featureCounts.capacity() * SLOT_BYTES;
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return Whether any document was spilled.
+	 */
+	public boolean isEmpty() {
+		return runs.isEmpty();
+	}
+
+	/**
+	 * Writes the counts of the documents that are still in memory to a new
+	 * run, and drops them from the documents.
+	 *
+	 * @param documents - all documents, those after the spilled ones are
+	 *            still in memory
+	 * @throws IOException - error writing
+	 */
+	public void spill(List<Document> documents) throws IOException {
+		if (spilledDocs == documents.size())
+			return;
+
+		// gather the postings of every term, dropping each map as we go
+		Map<String, int[]> postings = new HashMap<String, int[]>();
+		for (int i = spilledDocs; i < documents.size(); i++) {
+			Document d = documents.get(i);
+			if (d.featureCounts != null) {
+				for (int slot = 0; slot < d.featureCounts.capacity(); slot++) {
+					if (d.featureCounts.keyAt(slot) >= 0) {
+						addPosting(postings, "#" + d.featureCounts.keyAt(slot), i, d.featureCounts.countAt(slot));
+					}
+				}
+			}
+			else {
+				for (Map.Entry<String, Integer> e : d.termFrequency.entrySet()) {
+					addPosting(postings, e.getKey(), i, e.getValue());
+				}
+			}
+			d.termFrequency = null;
+			d.featureCounts = null;
+		}
+
+		String[] terms = postings.keySet().toArray(new String[postings.size()]);
+		Arrays.sort(terms);
+
+		File run = File.createTempFile("tdg", ".run", directory);
+		run.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+		for (String term : terms) {
+			int[] p = postings.get(term);
+			// the first slot holds the number of documents
+			out.writeUTF(term);
+			out.writeInt(p[0]);
+			for (int k = 1; k <= 2 * p[0]; k++) {
+				out.writeInt(p[k]);
+			}
+		}
+		out.close();
+
+		System.out.println("Spilled " + (documents.size() - spilledDocs) + " documents to " + run);
+		runs.add(run);
+		spilledDocs = documents.size();
+	}
+
+	/**
+	 * Builds the vocabulary of the spilled documents by merging the runs.
+	 *
+	 * @return The vocabulary in sorted order.
+	 * @throws IOException - error reading
+	 */
+	public Vocabulary vocabulary() throws IOException {
+		mergePasses();
+		String[] terms = new String[64];
+		int[] docFreq = new int[64];
+		long[] totalFreq = new long[64];
+		int size = 0;
+
+		Merge merge = new Merge(runs);
+		while (merge.next()) {
+			if (size == terms.length) {
+				terms = Arrays.copyOf(terms, size * 2);
+				docFreq = Arrays.copyOf(docFreq, size * 2);
+				totalFreq = Arrays.copyOf(totalFreq, size * 2);
+			}
+			terms[size] = merge.term;
+			docFreq[size] = merge.numDocs;
+			for (int k = 0; k < merge.numDocs; k++) {
+				totalFreq[size] += merge.counts[k];
+			}
+			size++;
+		}
+		merge.close();
+
+		return new Vocabulary(terms, docFreq, totalFreq, size);
+	}
+
+	/**
+	 * Reads the rows of the given terms by merging the runs.
+	 *
+	 * @param vocab - the terms, a sorted subset of the spilled terms
+	 *
+	 * @return The rows.
+	 * @throws IOException - error reading
+	 */
+	public RowSource rows(final Vocabulary vocab) throws IOException {
+		mergePasses();
+		final Merge merge = new Merge(runs);
+		return new RowSource() {
+			private int term;
+
+			public void next(int[] counts) throws IOException {
+				String wanted = vocab.terms[term++];
+				// skip the terms that were pruned
+				while (merge.next()) {
+					if (merge.term.equals(wanted)) {
+						Arrays.fill(counts, 0);
+						for (int k = 0; k < merge.numDocs; k++) {
+							counts[merge.docs[k]] = merge.counts[k];
+						}
+						return;
+					}
+				}
+				throw new IOException("Term " + wanted + " is not in the spilled runs");
+			}
+
+			public void close() throws IOException {
+				merge.close();
+			}
+		};
+	}
+
+	/**
+	 * Merges the runs MAX_MERGE at a time into longer runs, until a single
+	 * merge can read them all.
+	 * 
+	 * @throws IOException - error reading or writing
+	 */
+	private void mergePasses() throws IOException {
+		while (runs.size() > MAX_MERGE) {
+			List<File> merged = new ArrayList<File>();
+			for (int from = 0; from < runs.size(); from += MAX_MERGE) {
+				List<File> group = runs.subList(from, Math.min(from + MAX_MERGE, runs.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+
+				File run = File.createTempFile("tdg", ".run", directory);
+				run.deleteOnExit();
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+				Merge merge = new Merge(group);
+				try {
+					while (merge.next()) {
+						out.writeUTF(merge.term);
+						out.writeInt(merge.numDocs);
+						for (int k = 0; k < merge.numDocs; k++) {
+							out.writeInt(merge.docs[k]);
+							out.writeInt(merge.counts[k]);
+						}
+					}
+				}
+				finally {
+					merge.close();
+					out.close();
+				}
+				for (File f : group) {
+					f.delete();
+				}
+				merged.add(run);
+			}
+			runs = merged;
+		}
+	}
+
+	/**
+	 * Deletes the runs.
+	 */
+	public void delete() {
+		for (File run : runs) {
+			run.delete();
+		}
+		runs.clear();
+	}
+
+	/**
+	 * Adds the count of a term in a document to the term's postings.
+	 */
+	private static void addPosting(Map<String, int[]> postings, String term, int doc, int count) {
+		int[] p = postings.get(term);
+		if (p == null) {
+			p = new int[5];
+			postings.put(term, p);
+		}
+		else if (2 * p[0] + 2 >= p.length) {
+			p = Arrays.copyOf(p, p.length * 2 + 1);
+			postings.put(term, p);
+		}
+		p[2 * p[0] + 1] = doc;
+		p[2 * p[0] + 2] = count;
+		p[0]++;
+	}
+
+	/**
+	 * A run being read, positioned on its current term.
+	 */
+	private static class Run implements Comparable<Run> {
+		DataInputStream in;
+		String term;
+
+		Run(File f) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+		}
+
+		/**
+		 * Moves to the next term, false if the run is done.
+		 */
+		boolean advance() throws IOException {
+			try {
+				term = in.readUTF();
+				return true;
+			}
+			catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public int compareTo(Run o) {
+			return term.compareTo(o.term);
+		}
+	}
+
+	/**
+	 * Merges the runs into one sorted sequence of terms.
+	 */
+	private class Merge {
+		PriorityQueue<Run> queue = new PriorityQueue<Run>();
+		/** The current term, and the documents it appears in */
+		String term;
+		int numDocs;
+		int[] docs = new int[16];
+		int[] counts = new int[16];
+
+		Merge(List<File> files) throws IOException {
+			for (File f : files) {
+				Run r = new Run(f);
+				if (r.advance())
+					queue.add(r);
+			}
+		}
+
+		/**
+		 * Moves to the next term, combining it across runs. Every document is
+		 * in one run only.
+		 */
+		boolean next() throws IOException {
+			if (queue.isEmpty())
+				return false;
+
+			term = queue.peek().term;
+			numDocs = 0;
+			while (!queue.isEmpty() && queue.peek().term.equals(term)) {
+				Run r = queue.poll();
+				int n = r.in.readInt();
+				if (numDocs + n > docs.length) {
+					docs = Arrays.copyOf(docs, Math.max(docs.length * 2, numDocs + n));
+					counts = Arrays.copyOf(counts, docs.length);
+				}
+				for (int k = 0; k < n; k++) {
+					docs[numDocs] = r.in.readInt();
+					counts[numDocs] = r.in.readInt();
+					numDocs++;
+				}
+				if (r.advance())
+					queue.add(r);
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			for (Run r : queue) {
+				r.in.close();
+			}
+			queue.clear();
+		}
+	}
+}
@@ -16,10 +16,14 @@
 package edu.bu.sbahr;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -32,6 +36,21 @@ public class TDGenerator {
 	private static Map<String, String> stopWordMap = new HashMap<String, String>();
 	/** List of all documents */
 	private static List<Document> documents = new ArrayList<Document>();
+	/** Map of words to their stem, shared across documents */
+	private static Map<String, String> stemCache = new HashMap<String, String>();
+	/** Estimated bytes of the stem cache */
+	private static long stemCacheBytes = 0;
+	/** Estimated bytes of the counts of the documents still in memory */
+	private static long documentBytes = 0;
+	/** Counts of the documents that outgrew the memory budget */
+	private static SpillStore spillStore = new SpillStore(Settings.spillDirectory);
+	/** Approximate term frequencies, if serving idf from sketches */
+	private static TermSketch termSketch = Settings.approximateDf ? new TermSketch(Settings.sketchDepth,
+					Settings.sketchWidth, Settings.heavyHitters) : null;
+	/** Splits lines into words */
+	private static Tokenizer tokenizer = new Tokenizer(Settings.unicodeTokens, Settings.stripAccents);
+	/** Finds copies of documents already parsed */
+	private static DuplicateDetector duplicates = new DuplicateDetector(Settings.minHashBands, Settings.minHashRows);
 
 	public static void main(String[] args) {
 
@@ -53,6 +72,8 @@ public class TDGenerator {
 		String saveLoc = console.nextLine();
 
 		long startTime = System.currentTimeMillis();
+		Metrics.register();
+		long phaseStart = Metrics.start();
 
 		// split regex from
 		// http://stackoverflow.com/questions/16483418/split-string-on-spaces-except-file-paths
@@ -68,6 +89,7 @@ public class TDGenerator {
 			System.out.println("Args[" + i + "]: " + inputParts[i]);
 		}
 		System.out.println();
+		Metrics.stop(Metrics.Phase.DISCOVERY, phaseStart);
 
 		// construct the stop words mapping
 		constructStopWords();
@@ -75,25 +97,193 @@ public class TDGenerator {
 		// for each file, attempt to parse it
 		for (File f : allFiles) {
 			try {
-				parseDocument(f);
+				Document d = parseDocument(f);
+				if (d != null) {
+					if (termSketch != null) {
+						termSketch.addDocument(d);
+						termSketch.keepHeavyHitters(d);
+					}
+					enforceMemoryBudget(d);
+				}
 			}
 			catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
 
-		// try writing to file
+		// gather the terms once, and drop the ones we don't want in the matrix
+		phaseStart = Metrics.start();
+		Vocabulary vocab;
+		CountMatrix matrix = null;
+		try {
+			if (!spillStore.isEmpty()) {
+				// the rest joins the spilled documents, so they merge as one
+				spillStore.spill(documents);
+			}
+			if (termSketch != null) {
+				// the heavy hitters are the rows, the exact terms are never gathered
+				vocab = termSketch.vocabulary(Settings.hashBits > 0);
+				Metrics.INSTANCE.uniqueStems.set(-1);
+				System.out.println("Term sketches: " + termSketch.bytes() + " bytes");
+			}
+			else {
+				vocab = spillStore.isEmpty() ? Vocabulary.build(documents) : spillStore.vocabulary();
+				Metrics.INSTANCE.uniqueStems.set(vocab.size);
+				if (Settings.sketchReport) {
+					TermSketch.writeAccuracyReport(new File(saveLoc + "SketchReport.csv"), vocab, documents.size(),
+									Settings.sketchDepth, Settings.heavyHitters);
+				}
+			}
+			vocab = vocab.prune(documents.size(), Settings.minDocFreq, Settings.maxDocFreq, Settings.maxTerms,
+							Settings.rankByTotal);
+			phaseStart = Metrics.stop(Metrics.Phase.VOCABULARY, phaseStart);
+			System.out.println("Vocabulary: " + vocab.size + " terms\n");
+
+			// assemble the counts, after which the term maps aren't needed;
+			// spilled counts are streamed from the runs instead
+			if (spillStore.isEmpty()) {
+				matrix = new CountMatrix(new DocumentRows(documents, vocab), vocab.size, documents.size(),
+								Settings.offHeap);
+				for (Document d : documents) {
+					d.termFrequency = null;
+					d.featureCounts = null;
+				}
+				phaseStart = Metrics.stop(Metrics.Phase.ASSEMBLE, phaseStart);
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			spillStore.delete();
+			return;
+		}
+
+		double[] idf = computeInvDocFreqs(vocab, documents.size());
+		phaseStart = Metrics.stop(Metrics.Phase.WEIGHTING, phaseStart);
+
+		// the normalized tf-idf columns, for comparing documents
+		DocumentVectors vectors = null;
 		try {
 			// want a document-term matrix A (which is just the term freq)
-			writeToFile(new File(saveLoc), false);
+			writeToFile(new File(saveLoc), null, vocab, openRows(matrix, vocab));
 			// want a document-term matrix B (which is
-			writeToFile(new File(saveLoc + "Prime"), true);
+			writeToFile(new File(saveLoc + "Prime"), idf, vocab, openRows(matrix, vocab));
+			phaseStart = Metrics.stop(Metrics.Phase.WRITE, phaseStart);
+
+			if (Settings.similarity || Settings.annIndex || Settings.clusters > 0) {
+				// comparing documents needs every count at once, spilled or not
+				if (matrix == null) {
+					matrix = new CountMatrix(openRows(null, vocab), vocab.size, documents.size(), true);
+					phaseStart = Metrics.stop(Metrics.Phase.ASSEMBLE, phaseStart);
+				}
+				vectors = new DocumentVectors(matrix, idf);
+			}
 		}
 		catch (IOException e) {
 			e.printStackTrace();
+			return;
+		}
+		finally {
+			spillStore.delete();
+		}
+
+		if (Settings.similarity) {
+			try {
+				SimilarityJob job = new SimilarityJob(vectors, Settings.similarityThreshold, Settings.similarityBlock);
+				job.run(Settings.threads);
+				long pairs = job.write(saveLoc + "Similarity.csv", documents, Settings.compression);
+				System.out.println(pairs + " similar pairs written\n");
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			phaseStart = Metrics.stop(Metrics.Phase.SIMILARITY, phaseStart);
+		}
+
+		if (Settings.annIndex) {
+			try {
+				String[] names = new String[documents.size()];
+				for (int d = 0; d < names.length; d++) {
+					names[d] = documents.get(d).documentName.replaceAll(".txt", "");
+				}
+				AnnIndex index = AnnIndex.build(vectors, Settings.annTables, Settings.annBits, Settings.annSeed, names,
+								vocab.terms, idf);
+				index.save(new File(saveLoc + "Index.ann"));
+				System.out.println("Nearest neighbor index written to " + saveLoc + "Index.ann\n");
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			phaseStart = Metrics.stop(Metrics.Phase.INDEX, phaseStart);
+		}
+
+		if (Settings.clusters > 0) {
+			try {
+				KMeans kmeans = new KMeans(vectors, Settings.clusters);
+				int iterations = kmeans.run(Settings.clusterIterations, Settings.threads, Settings.clusterSeed);
+				kmeans.write(saveLoc + "Clusters.csv", documents, Settings.compression);
+				System.out.println("Clusters written after " + iterations + " iterations\n");
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			phaseStart = Metrics.stop(Metrics.Phase.CLUSTER, phaseStart);
 		}
 
 		System.out.println("(" + (System.currentTimeMillis() - startTime) + " msecs)");
+
+		try {
+			if (duplicates.hasDuplicates()) {
+				duplicates.writeReport(new File(saveLoc + "Duplicates.csv"));
+			}
+			if (termSketch != null) {
+				termSketch.writeHeavyHitters(new File(saveLoc + "HeavyHitters.csv"));
+			}
+			Metrics.writeSummary(new File(saveLoc + "Metrics.json"));
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * The stem cache may take up to half of the memory budget. A spill doesn't
+	 * free it, so past that it would make every document spill on its own.
+	 * 
+	 * @return Whether the stem cache is full.
+	 */
+	private static boolean stemCacheFull() {
+		return Settings.memoryBudget > 0 && stemCacheBytes >= Settings.memoryBudget / 2;
+	}
+
+	/**
+	 * Spills the counts of the documents in memory to disk once they, together
+	 * with the stem cache, outgrow the memory budget.
+	 * 
+	 * @param d - the document just parsed
+	 * @throws IOException - error writing
+	 */
+	private static void enforceMemoryBudget(Document d) throws IOException {
+		documentBytes += SpillStore.estimateBytes(d);
+		if (Settings.memoryBudget > 0 && documentBytes + stemCacheBytes > Settings.memoryBudget) {
+			spillStore.spill(documents);
+			documentBytes = 0;
+		}
+	}
+
+	/**
+	 * Opens the rows of the matrix, from the assembled matrix or from the
+	 * spilled runs.
+	 * 
+	 * @param matrix - the assembled counts, null if they were spilled
+	 * @param vocab - the terms that make up the rows
+	 * 
+	 * @return The rows.
+	 * @throws IOException - error reading
+	 */
+	private static RowSource openRows(CountMatrix matrix, Vocabulary vocab) throws IOException {
+		if (matrix != null)
+			return matrix.rows();
+		return spillStore.rows(vocab);
 	}
 
 	/**
@@ -118,183 +308,329 @@ public class TDGenerator {
 		}
 	}
 
+	/**
+	 * @param word - a case folded word
+	 * 
+	 * @return Whether the word is a stop word, left out of the documents.
+	 */
+	static boolean isStopWord(String word) {
+		if (stopWordMap.isEmpty())
+			constructStopWords();
+		return stopWordMap.containsKey(word);
+	}
+
 	/**
 	 * Takes a path file of a document and parses the words in the document if
 	 * they are not stop words. Maps these non-stop words (and the stem of them)
 	 * to a counter.
 	 * 
+	 * Copies of documents already parsed are skipped if enabled.
+	 * 
 	 * @param file - document file being read
+	 * @return The document, null if it was skipped as a copy.
 	 * @throws IOException - error reading
 	 */
-	private static void parseDocument(File file) throws IOException {
+	private static Document parseDocument(File file) throws IOException {
+		String name = file.getName().toString();
 		// maps words to the times they appear
 		Map<String, Integer> wordToCount = new HashMap<String, Integer>();
+		// maps hashed features to the times they appear, if hashing
+		IntCountMap featureToCount = null;
+		boolean hashing = Settings.hashBits > 0;
+		boolean cached = !hashing && Settings.stemCacheSize > 0;
+		if (hashing) {
+			featureToCount = new IntCountMap(1024);
+		}
+		// the previous stems (or their hashes), most recent first, for n-grams
+		int window = Math.max(Settings.ngrams - 1, 0);
+		String[] prevStems = new String[window];
+		int[] prevHashes = new int[window];
+		int seen = 0;
+		// per token timings are optional, as reading the clock isn't free
+		boolean timed = Settings.tokenTimings;
+		long readNanos = 0, tokenizeNanos = 0, stopNanos = 0, stemNanos = 0, countNanos = 0;
+		long tokens = 0, stopWords = 0, cacheHits = 0;
+		// MinHash signature of the stems, if looking for near copies
+		int[] signature = Settings.nearDupThreshold > 0 ? duplicates.newSignature() : null;
+		// the stems already in the signature, if hashing, as a bucket may
+		// already be counted for an n-gram
+		IntCountMap signed = signature != null && hashing ? new IntCountMap(1024) : null;
 		// read from this file
-		BufferedReader reader = new BufferedReader(new FileReader(file.toString()));
+		BufferedReader reader;
+		if (Settings.skipDuplicates) {
+			// hash the content before spending any time parsing it
+			long readStart = System.nanoTime();
+			byte[] content = Files.readAllBytes(file.toPath());
+			Metrics.add(Metrics.Phase.READ, System.nanoTime() - readStart);
+			String original = duplicates.exactDuplicate(content, file);
+			if (original != null) {
+				System.out.println("Skipping " + name + ", a copy of " + original);
+				Metrics.INSTANCE.exactDuplicates.incrementAndGet();
+				return null;
+			}
+			reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content), Settings.charset));
+		}
+		else {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Settings.charset));
+		}
 		// new stemming object
 		Stemmer s = new Stemmer();
 		// initial line
 		String line = null;
+		long clock = System.nanoTime();
 		while ((line = reader.readLine()) != null) {
-			// get each word
-			// String[] parts = line.split("\\s");
-			String[] parts = line.replaceAll("[^a-zA-Z ]", " ").toLowerCase().split("\\s+");
+			long now = System.nanoTime();
+			readNanos += now - clock;
+			clock = now;
+
+			// get each word, case folded
+			List<String> parts = tokenizer.split(line);
+
+			now = System.nanoTime();
+			tokenizeNanos += now - clock;
+			clock = now;
 
 			// for each word in the document, if it's a stop word
 			for (String part : parts) {
-				// remove whitespace, and lowercase it
-				part = part.trim().toLowerCase();
+				tokens++;
 
 				// if not a stop word
-				if (!stopWordMap.containsKey(part) && !part.equalsIgnoreCase("")) {
+				boolean stopWord = stopWordMap.containsKey(part);
+				if (timed) {
+					now = System.nanoTime();
+					stopNanos += now - clock;
+					clock = now;
+				}
+				if (stopWord) {
+					stopWords++;
+					continue;
+				}
 
-					// take the word and get char[]
+				String stem = null;
+				int hash = 0;
+				if (hashing) {
+					// hash straight off the stem buffer, no String needed
 					char[] cw = part.toCharArray();
 					s.add(cw, cw.length);
-
-					// get the stem of the word
 					s.stem();
-					String stem = s.toString();
+					hash = FeatureHash.hash(s.getResultBuffer(), s.getResultLength());
+				}
+				else {
+					// get the stem of the word, from the cache if we've seen it
+					if (cached)
+						stem = stemCache.get(part);
+					if (stem != null) {
+						cacheHits++;
+					}
+					else {
+						// take the word and get char[]
+						char[] cw = part.toCharArray();
+						s.add(cw, cw.length);
+						s.stem();
+						stem = s.toString();
+						if (cached && stemCache.size() < Settings.stemCacheSize && !stemCacheFull()) {
+							stemCache.put(part, stem);
+							stemCacheBytes += SpillStore.ENTRY_BYTES + part.length() + stem.length();
+						}
+					}
+				}
+				if (timed) {
+					now = System.nanoTime();
+					stemNanos += now - clock;
+					clock = now;
+				}
 
+				if (hashing) {
+					// keyed by the top 31 bits, as the keys can't be negative
+					if (signature != null && signed.get(hash >>> 1) == 0) {
+						signed.add(hash >>> 1, 1);
+						duplicates.update(signature, hash);
+					}
+					featureToCount.add(FeatureHash.bucket(hash, Settings.hashBits), 1);
+
+					// the n-grams ending in this stem
+					int gram = hash;
+					for (int n = 0; n < window && n < seen; n++) {
+						gram = FeatureHash.combine(prevHashes[n], gram);
+						featureToCount.add(FeatureHash.bucket(gram, Settings.hashBits), 1);
+					}
+
+					if (window > 0) {
+						System.arraycopy(prevHashes, 0, prevHashes, 1, window - 1);
+						prevHashes[0] = hash;
+					}
+				}
+				else {
 					// add to word counter
 					if (wordToCount.containsKey(stem))
 						wordToCount.put(stem, wordToCount.get(stem) + 1);
-					else
+					else {
 						wordToCount.put(stem, 1);
+						if (signature != null)
+							duplicates.update(signature, FeatureHash.hash(stem));
+					}
+
+					// the n-grams ending in this stem
+					String gram = stem;
+					for (int n = 0; n < window && n < seen; n++) {
+						gram = prevStems[n] + " " + gram;
+						Integer count = wordToCount.get(gram);
+						wordToCount.put(gram, count == null ? 1 : count + 1);
+					}
+
+					if (window > 0) {
+						System.arraycopy(prevStems, 0, prevStems, 1, window - 1);
+						prevStems[0] = stem;
+					}
+				}
+				seen++;
+				if (timed) {
+					now = System.nanoTime();
+					countNanos += now - clock;
+					clock = now;
 				}
 			}
-		}
 
-		Document d = new Document(file.getName().toString(), wordToCount);
-		documents.add(d);
+			// without per token timings, the whole line counts as tokenizing
+			now = System.nanoTime();
+			tokenizeNanos += now - clock;
+			clock = now;
+		}
 
 		reader.close();
+
+		Document d = new Document(name, wordToCount);
+		d.featureCounts = featureToCount;
+
+		Metrics.add(Metrics.Phase.READ, readNanos + System.nanoTime() - clock);
+		Metrics.add(Metrics.Phase.TOKENIZE, tokenizeNanos);
+		Metrics.add(Metrics.Phase.STOP_WORDS, stopNanos);
+		Metrics.add(Metrics.Phase.STEM, stemNanos);
+		Metrics.add(Metrics.Phase.COUNT, countNanos);
+		Metrics.INSTANCE.bytesRead.addAndGet(file.length());
+		Metrics.INSTANCE.tokens.addAndGet(tokens);
+		Metrics.INSTANCE.stopWordsDropped.addAndGet(stopWords);
+		Metrics.INSTANCE.stemCacheHits.addAndGet(cacheHits);
+
+		if (signature != null) {
+			String original = duplicates.nearDuplicate(signature, name, Settings.nearDupThreshold,
+							Settings.collapseNearDuplicates);
+			if (original != null) {
+				Metrics.INSTANCE.nearDuplicates.incrementAndGet();
+				if (Settings.collapseNearDuplicates) {
+					System.out.println("Skipping " + name + ", a near copy of " + original);
+					return null;
+				}
+				System.out.println(name + " is a near copy of " + original);
+			}
+		}
+
+		documents.add(d);
+		return d;
 	}
 
 	/**
 	 * Writers to a specified file and appends the file name with _words.txt.
 	 * 
 	 * @param file - the file that we are parsing from
-	 * @param invDocFreq - value of matrix cell should be termFreq *
-	 *            inverseDocFreq
+	 * @param idf - inverse document frequency of each term, the value of a
+	 *            matrix cell is termFreq * inverseDocFreq, null for termFreq
+	 * @param vocab - the terms that make up the rows
+	 * @param rows - the counts of each term, closed once written
 	 * @throws IOException - error writing
 	 */
-	private static void writeToFile(File f, boolean invDocFreq) throws IOException {
+	private static void writeToFile(File f, double[] idf, Vocabulary vocab, RowSource rows) throws IOException {
 		String name = f.getPath();
 
 		String newPath = name + ".csv";
 
-		System.out.println("Attempting to write to file " + newPath);
-
-		// write to this file
-		FileWriter writer = new FileWriter(newPath);
-
-		// build all the terms first
-		List<String> totalTerms = new ArrayList<String>();
-		// for each file
-		for (Document d : documents) {
+		System.out.println("Attempting to write to file " + newPath + Settings.compression.extension);
 
-			// for each term in that file
-			for (String term : d.termFrequency.keySet()) {
-
-				// if not in total terms already
-				if (!totalTerms.contains(term)) {
-					totalTerms.add(term);
-				}
-			}
-		}
-
-		/*
-		 * Column Declaration (document name)
-		 */
-		writer.append(" ");
-		writer.append(',');
-		for (Document d : documents) {
-			String n = d.documentName.replaceAll(".txt", "");
-			writer.append(n);
-			writer.append(',');
-		}
-		writer.append('\n');
-
-		// for each term in terms
-		for (String term : totalTerms) {
-			/*
-			 * Row declaration (doc name)
-			 */
-			writer.append(term);
-			writer.append(',');
-			// for each document
-			for (Document d : documents) {
-				// the term freq map
-				Map<String, Integer> map = d.termFrequency;
-
-				// value that goes in the matrix
-				double amount = 0;
-
-				// if computing tf-idf
-				if (invDocFreq) {
-					int occur = 0;
-					if (map.containsKey(term)) {
-						occur = map.get(term);
-					}
-					// value should be the tf-idf
-					amount = computeInvDocFreq(term, occur);
+		try {
+			// write to this file
+			Writer writer = new OutputStreamWriter(Settings.compression.open(newPath), Settings.charset);
+			try {
+				/*
+				 * Column Declaration (document name)
+				 */
+				writer.append(" ");
+				writer.append(',');
+				for (Document d : documents) {
+					String n = d.documentName.replaceAll(".txt", "");
+					writer.append(n);
+					writer.append(',');
 				}
-				else {
-					if (map.containsKey(term)) {
-						amount = map.get(term);
+				writer.append('\n');
+
+				// the count of the current term in each document
+				int[] counts = new int[documents.size()];
+
+				// for each term in terms
+				for (int t = 0; t < vocab.size; t++) {
+					String term = vocab.terms[t];
+					rows.next(counts);
+					/*
+					 * Row declaration (doc name)
+					 */
+					writer.append(term);
+					writer.append(',');
+					// for each document
+					for (int i = 0; i < counts.length; i++) {
+						// value that goes in the matrix
+						double amount = 0;
+
+						int occur = counts[i];
+
+						// if computing tf-idf, an absent term is 0.0 whatever its idf
+						if (idf != null && occur != 0) {
+							// value should be the tf-idf
+							amount = occur * idf[t];
+						}
+						else {
+							amount = occur;
+						}
+
+						writer.append(String.valueOf(amount));
+						writer.append(',');
 					}
+
+					writer.append('\n');
 				}
 
-				writer.append(String.valueOf(amount));
-				writer.append(',');
+				writer.flush();
+			}
+			finally {
+				writer.close();
 			}
-
-			writer.append('\n');
 		}
-
-		writer.flush();
-		writer.close();
+		finally {
+			rows.close();
+		}
 
 		System.out.println("File written!\n");
 	}
 
 	/**
-	 * Computes the inverse document frequency given the term and the number of
-	 * occurrences of that term in a specified document.
+	 * Computes the inverse document frequency of every term in the
+	 * vocabulary. The tf-idf of a term in a document is then the number of
+	 * occurrences of the term in the document times its inverse document
+	 * frequency.
 	 * 
 	 * The tf-idf is defined as http://en.wikipedia.org/wiki/Tf–idf.
 	 * 
-	 * @param term - the term
-	 * @param occurs - the number of occurences of this term in this document
+	 * In approximate mode, the document frequencies are the estimates of the
+	 * term sketch.
 	 * 
-	 * @return The tf-idf (term frequency - inverse document frequency) of the
-	 *         term.
-	 */
-	private static double computeInvDocFreq(String term, int occurs) {
-		if (occurs == 0)
-			return 0;
-
-		double idf = Math.log(((double) documents.size()) / ((double) numOfDocs(term)));
-		double tfidf = occurs * idf;
-
-		return tfidf;
-	}
-
-	/**
-	 * Get the number of documents that term appears in.
+	 * @param vocab - the terms, with their document frequencies
+	 * @param numDocs - the number of documents
 	 * 
-	 * @param term - the term
-	 * 
-	 * @return The number of documents the term appears in.
+	 * @return The inverse document frequency of each term.
 	 */
-	private static int numOfDocs(String term) {
-		int freq = 0;
-		for (Document d : documents) {
-			if (d.termFrequency.containsKey(term)) {
-				freq++;
-			}
+	private static double[] computeInvDocFreqs(Vocabulary vocab, int numDocs) {
+		double[] idf = new double[vocab.size];
+		for (int t = 0; t < vocab.size; t++) {
+			idf[t] = Math.log(((double) numDocs) / ((double) vocab.docFreq[t]));
 		}
-		return freq;
+		return idf;
 	}
 }
@@ -0,0 +1,276 @@
+// This class tracks the document frequency and total frequency of terms in
+// Count-Min sketches, so the idf of a term can be served in constant memory
+// however many documents stream through, at the cost of a bounded error. The
+// most frequent terms are kept by name in a heavy hitters table of fixed size.
+//
+// In approximate mode the heavy hitters are the rows of the matrix, and each
+// document only keeps the counts of the terms that are heavy hitters once it
+// is counted, so no exact term to frequency map is ever built. A term that
+// becomes a heavy hitter later is missing from the documents counted before.
+
+package edu.bu.sbahr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class TermSketch {
+
+	/** Widths compared by the accuracy report */
+	private static final int[] REPORT_WIDTHS = { 1 << 8, 1 << 10, 1 << 12, 1 << 14, 1 << 16, 1 << 18 };
+
+	/** Document frequency and total frequency of the terms */
+	private CountMinSketch docFreq;
+	private CountMinSketch totalFreq;
+	/** Number of documents counted */
+	private int numDocs;
+	/** The terms with the highest estimated total frequency */
+	private Map<String, Long> heavyHitters = new HashMap<String, Long>();
+	private int maxHeavyHitters;
+	/** Smallest total frequency in the heavy hitters, once full */
+	private long heavyMin;
+
+	/**
+	 * Construct a new sketch
+	 *
+	 * @param depth - the number of rows of the sketches
+	 * @param width - the number of counters in each row
+	 * @param maxHeavyHitters - the number of most frequent terms kept
+	 */
+	public TermSketch(int depth, int width, int maxHeavyHitters) {
+		this.docFreq = new CountMinSketch(depth, width);
+		this.totalFreq = new CountMinSketch(depth, width);
+		this.maxHeavyHitters = maxHeavyHitters;
+	}
+
+	/**
+	 * Counts the terms of a document.
+	 *
+	 * @param d - the document, with its term counts still in memory
+	 */
+	public void addDocument(Document d) {
+		numDocs++;
+		if (d.featureCounts != null) {
+			for (int slot = 0; slot < d.featureCounts.capacity(); slot++) {
+				if (d.featureCounts.keyAt(slot) >= 0) {
+					addTerm("#" + d.featureCounts.keyAt(slot), d.featureCounts.countAt(slot));
+				}
+			}
+		}
+		else {
+			for (Map.Entry<String, Integer> e : d.termFrequency.entrySet()) {
+				addTerm(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Drops the counts of the terms that aren't heavy hitters from a document
+	 * just counted, so it keeps at most as many terms as the table.
+	 *
+	 * @param d - the document
+	 */
+	public void keepHeavyHitters(Document d) {
+		if (d.featureCounts != null) {
+			IntCountMap kept = new IntCountMap(Math.min(d.featureCounts.size(), heavyHitters.size()));
+			for (int slot = 0; slot < d.featureCounts.capacity(); slot++) {
+				int bucket = d.featureCounts.keyAt(slot);
+				if (bucket >= 0 && heavyHitters.containsKey("#" + bucket))
+					kept.add(bucket, d.featureCounts.countAt(slot));
+			}
+			d.featureCounts = kept;
+		}
+		else {
+			Iterator<String> terms = d.termFrequency.keySet().iterator();
+			while (terms.hasNext()) {
+				if (!heavyHitters.containsKey(terms.next()))
+					terms.remove();
+			}
+		}
+	}
+
+	/**
+	 * Makes the vocabulary of the heavy hitters, with their estimated
+	 * document frequencies, instead of gathering the exact one.
+	 *
+	 * @param hashed - whether the terms are hashed buckets
+	 *
+	 * @return The vocabulary in sorted order, as the spilled runs are.
+	 */
+	public Vocabulary vocabulary(boolean hashed) {
+		String[] terms = heavyHitters.keySet().toArray(new String[heavyHitters.size()]);
+		Arrays.sort(terms);
+		int[] df = new int[terms.length];
+		long[] total = new long[terms.length];
+		int[] buckets = hashed ? new int[terms.length] : null;
+		for (int t = 0; t < terms.length; t++) {
+			df[t] = docFreq(terms[t]);
+			total[t] = heavyHitters.get(terms[t]);
+			if (hashed)
+				buckets[t] = Integer.parseInt(terms[t].substring(1));
+		}
+		Vocabulary vocab = new Vocabulary(terms, df, total, terms.length);
+		vocab.buckets = buckets;
+		return vocab;
+	}
+
+	/**
+	 * Estimates the document frequency of a term. The sketch overestimates,
+	 * and a term colliding with common terms could seem to be in more
+	 * documents than there are, so the estimate is capped to keep the idf
+	 * from going negative.
+	 *
+	 * @param term - the term
+	 *
+	 * @return The estimate, between 1 and the number of documents.
+	 */
+	public int docFreq(String term) {
+		return (int) Math.min(Math.max(docFreq.estimate(FeatureHash.hash(term)), 1), Math.max(numDocs, 1));
+	}
+
+	/**
+	 * @return The estimated bytes taken: both sketches and the heavy hitters.
+	 */
+	public long bytes() {
+		long bytes = docFreq.bytes() + totalFreq.bytes();
+		for (String term : heavyHitters.keySet()) {
+			bytes += SpillStore.ENTRY_BYTES + term.length();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes the heavy hitters, most frequent first.
+	 *
+	 * @param f - the file
+	 * @throws IOException - error writing
+	 */
+	public void writeHeavyHitters(File f) throws IOException {
+		List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(heavyHitters.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+				return b.getValue().compareTo(a.getValue());
+			}
+		});
+
+		Writer writer = new OutputStreamWriter(new FileOutputStream(f), Settings.charset);
+		writer.append("term,totalFreq,docFreq\n");
+		for (Map.Entry<String, Long> e : entries) {
+			writer.append(e.getKey() + "," + e.getValue() + "," + docFreq(e.getKey()) + "\n");
+		}
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * Compares the document frequencies estimated by sketches of several
+	 * widths with the exact ones, and writes the error against the memory
+	 * used. A sketch only ever adds counts, so counting each term's document
+	 * frequency at once gives the same sketch as counting it document by
+	 * document. The memory of approximate mode is both sketches and the heavy
+	 * hitters, that of the exact vocabulary its map and frequency arrays.
+	 *
+	 * @param f - the report file
+	 * @param vocab - the unpruned vocabulary, with exact document frequencies
+	 * @param numDocs - the number of documents
+	 * @param depth - the number of rows of the sketches
+	 * @param maxHeavyHitters - the number of heavy hitters kept
+	 * @throws IOException - error writing
+	 */
+	public static void writeAccuracyReport(File f, Vocabulary vocab, int numDocs, int depth, int maxHeavyHitters)
+					throws IOException {
+		int[] hashes = new int[vocab.size];
+		for (int t = 0; t < vocab.size; t++) {
+			hashes[t] = FeatureHash.hash(vocab.terms[t]);
+		}
+
+		FileWriter writer = new FileWriter(f);
+		writer.append("depth,width,sketchBytes,heavyHitterBytes,exactBytes,meanAbsError,maxAbsError,meanIdfError,"
+						+ "maxIdfError,exactTerms\n");
+		long exactBytes = 0;
+		for (int t = 0; t < vocab.size; t++) {
+			// a map entry, and the document and total frequency
+			exactBytes += SpillStore.ENTRY_BYTES + vocab.terms[t].length() + 12;
+		}
+		// the heavy hitters, at the mean length of a term
+		int kept = Math.min(maxHeavyHitters, vocab.size);
+		long heavyBytes = vocab.size == 0 ? 0 : kept * (exactBytes / vocab.size - 12);
+
+		for (int width : REPORT_WIDTHS) {
+			CountMinSketch sketch = new CountMinSketch(depth, width);
+			for (int t = 0; t < vocab.size; t++) {
+				sketch.add(hashes[t], vocab.docFreq[t]);
+			}
+
+			double sumAbs = 0, sumIdf = 0, maxIdf = 0;
+			long maxAbs = 0;
+			int exact = 0;
+			for (int t = 0; t < vocab.size; t++) {
+				// capped as the served estimates are
+				long estimate = Math.min(sketch.estimate(hashes[t]), numDocs);
+				long error = estimate - vocab.docFreq[t];
+				sumAbs += error;
+				maxAbs = Math.max(maxAbs, error);
+				if (error == 0)
+					exact++;
+				double idfError = Math.log(((double) estimate) / vocab.docFreq[t]);
+				sumIdf += idfError;
+				maxIdf = Math.max(maxIdf, idfError);
+			}
+			int n = Math.max(vocab.size, 1);
+			// a document frequency and a total frequency sketch
+			writer.append(depth + "," + width + "," + 2 * sketch.bytes() + "," + heavyBytes + "," + exactBytes + ","
+							+ sumAbs / n + "," + maxAbs + "," + sumIdf / n + "," + maxIdf + "," + exact + "\n");
+		}
+		writer.flush();
+		writer.close();
+	}
+
+	/**
+	 * Counts a term of a document.
+	 */
+	private void addTerm(String term, int count) {
+		int h = FeatureHash.hash(term);
+		docFreq.add(h, 1);
+		totalFreq.add(h, count);
+
+		Long current = heavyHitters.get(term);
+		if (current != null) {
+			heavyHitters.put(term, current + count);
+			return;
+		}
+
+		long estimate = totalFreq.estimate(h);
+		if (heavyHitters.size() < maxHeavyHitters) {
+			heavyHitters.put(term, estimate);
+			return;
+		}
+
+		// only look for the smallest heavy hitter once this one could beat it
+		if (estimate <= heavyMin)
+			return;
+		String minTerm = null;
+		heavyMin = Long.MAX_VALUE;
+		for (Map.Entry<String, Long> e : heavyHitters.entrySet()) {
+			if (e.getValue() < heavyMin) {
+				heavyMin = e.getValue();
+				minTerm = e.getKey();
+			}
+		}
+		if (minTerm != null && estimate > heavyMin) {
+			heavyHitters.remove(minTerm);
+			heavyHitters.put(term, estimate);
+		}
+	}
+}
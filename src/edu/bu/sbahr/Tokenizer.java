@@ -0,0 +1,347 @@
+// This class splits a line into words, case folded. In ASCII mode a word is a
+// run of the letters a-z and A-Z, as the generator has always read them. In
+// Unicode mode a word is a run of letters of any script, plus the combining
+// marks within it, composed with the letters they follow. Its accents can be
+// stripped too (e.g. "Café" to "cafe").
+//
+// Most text is ASCII or Latin-1, so those characters are classified and
+// folded through tables computed up front. Higher characters fall back to
+// Character, and their folds are cached a page of 256 at a time.
+//
+// A tokenizer reuses its buffers and isn't thread safe.
+
+package edu.bu.sbahr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class Tokenizer {
+
+	/** Classes of the Latin-1 characters */
+	private static final byte SEPARATOR = 0;
+	private static final byte LETTER = 1;
+	private static final byte FOLDED = 2;
+	private static final byte EXPANDED = 3;
+
+	/** Class of each Latin-1 character */
+	private byte[] latinClass = new byte[256];
+	/** Fold of each Latin-1 character of class FOLDED, or EXPANDED */
+	private char[] latinFold = new char[256];
+	private String[] latinExpansion = new String[256];
+	/**
+	 * Folds of the higher Basic Multilingual Plane characters, by page of 256,
+	 * filled as they are met: null for a separator, "" for a dropped mark
+	 */
+	private String[][] pages = new String[256][];
+
+	/** Read letters of every script */
+	private boolean unicode;
+	/** Drop the accents of the letters */
+	private boolean stripAccents;
+
+	/** The line being split, and where the next word may start */
+	private char[] line = new char[256];
+	private int length;
+	private int position;
+	/** The word being built */
+	private char[] word = new char[64];
+
+	/**
+	 * Construct a new tokenizer
+	 *
+	 * @param unicode - read letters of every script, not just a-z
+	 * @param stripAccents - drop the accents of the letters, in Unicode mode
+	 */
+	public Tokenizer(boolean unicode, boolean stripAccents) {
+		this.unicode = unicode;
+		this.stripAccents = unicode && stripAccents;
+		for (int c = 0; c < 256; c++) {
+			String fold = fold(c);
+			if (fold == null) {
+				latinClass[c] = SEPARATOR;
+			}
+			else if (fold.length() == 1 && fold.charAt(0) == c) {
+				latinClass[c] = LETTER;
+			}
+			else if (fold.length() == 1) {
+				latinClass[c] = FOLDED;
+				latinFold[c] = fold.charAt(0);
+			}
+			else {
+				latinClass[c] = EXPANDED;
+				latinExpansion[c] = fold;
+			}
+		}
+	}
+
+	/**
+	 * Starts splitting a line.
+	 *
+	 * @param text - the line
+	 */
+	public void reset(String text) {
+		length = text.length();
+		if (line.length < length)
+			line = new char[Math.max(length, line.length * 2)];
+		text.getChars(0, length, line, 0);
+		position = 0;
+	}
+
+	/**
+	 * @return The next word of the line, null once there are none left.
+	 */
+	public String next() {
+		int n = 0;
+		// whether the word has a combining mark to compose
+		boolean marked = false;
+		int i = position;
+		while (i < length) {
+			char c = line[i];
+			if (c < 256) {
+				switch (latinClass[c]) {
+					case LETTER:
+						if (n == word.length)
+							grow(n + 1);
+						word[n++] = c;
+						i++;
+						continue;
+					case FOLDED:
+						if (n == word.length)
+							grow(n + 1);
+						word[n++] = latinFold[c];
+						i++;
+						continue;
+					case EXPANDED:
+						n = append(n, latinExpansion[c]);
+						i++;
+						continue;
+					default:
+						i++;
+						if (n > 0) {
+							position = i;
+							return word(n, marked);
+						}
+						continue;
+				}
+			}
+
+			if (!unicode) {
+				i++;
+				if (n > 0) {
+					position = i;
+					return new String(word, 0, n);
+				}
+				continue;
+			}
+
+			// a higher character
+			int cp = Character.codePointAt(line, i, length);
+			String fold = cp < 0x10000 ? page(cp >> 8)[cp & 0xff] : fold(cp);
+			i += Character.charCount(cp);
+			boolean mark = fold != null && isMark(cp);
+			if (fold == null || (n == 0 && mark)) {
+				// a mark only belongs to the word it follows
+				if (n > 0) {
+					position = i;
+					return word(n, marked);
+				}
+				continue;
+			}
+			marked |= mark && fold.length() > 0;
+			n = append(n, fold);
+		}
+		position = length;
+		return n > 0 ? word(n, marked) : null;
+	}
+
+	/**
+	 * Splits a line into its words.
+	 *
+	 * @param text - the line
+	 *
+	 * @return The words.
+	 */
+	public List<String> split(String text) {
+		List<String> words = new ArrayList<String>();
+		reset(text);
+		String w;
+		while ((w = next()) != null) {
+			words.add(w);
+		}
+		return words;
+	}
+
+	/**
+	 * Times the tokenizers over some files, against a scanner that only knows
+	 * ASCII and against the regular expression the generator used to split
+	 * lines with. Usage: Tokenizer file...
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: Tokenizer file...");
+			return;
+		}
+		List<String> lines = new ArrayList<String>();
+		long chars = 0;
+		int longest = 0;
+		for (String a : args) {
+			for (String l : Files.readAllLines(new File(a).toPath(), Charset.forName("UTF-8"))) {
+				lines.add(l);
+				chars += l.length();
+				longest = Math.max(longest, l.length());
+			}
+		}
+
+		String[] names = { "ascii scanner", "regex", "ascii", "unicode", "unicode, accents stripped" };
+		Tokenizer[] tokenizers = { null, null, new Tokenizer(false, false), new Tokenizer(true, false),
+						new Tokenizer(true, true) };
+		char[] scratch = new char[longest];
+		for (int round = 0; round < 2; round++) {
+			// the first round warms up the compiler
+			boolean report = round == 1;
+			for (int k = 0; k < names.length; k++) {
+				long words = 0;
+				long start = System.nanoTime();
+				int repeats = 0;
+				while (System.nanoTime() - start < 2000000000L || repeats < 3) {
+					words = 0;
+					for (String l : lines) {
+						words += k == 0 ? scanAscii(l, scratch) : k == 1 ? splitRegex(l) : count(tokenizers[k], l);
+					}
+					repeats++;
+				}
+				double seconds = (System.nanoTime() - start) / 1e9;
+				if (report) {
+					System.out.println(String.format("%-26s %10d words %8.1f MB chars/s", names[k], words, chars
+									* repeats / seconds / 1e6));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The fold of a character: null if it doesn't belong in a word,
+	 *         "" if it is dropped from its word, otherwise its case folded
+	 *         form, accents stripped if asked for.
+	 */
+	private String fold(int cp) {
+		if (!unicode) {
+			if (cp >= 'A' && cp <= 'Z')
+				return String.valueOf((char) (cp + 'a' - 'A'));
+			if (cp >= 'a' && cp <= 'z')
+				return String.valueOf((char) cp);
+			return null;
+		}
+
+		if (isMark(cp))
+			return stripAccents ? "" : new String(Character.toChars(cp));
+		if (!Character.isLetter(cp))
+			return null;
+
+		// upper then lower case gives the simple case fold, and ß to ss
+		String fold = new String(Character.toChars(cp)).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+		if (stripAccents) {
+			String decomposed = Normalizer.normalize(fold, Normalizer.Form.NFD);
+			StringBuilder stripped = new StringBuilder(decomposed.length());
+			for (int i = 0; i < decomposed.length(); i++) {
+				if (!isMark(decomposed.charAt(i)))
+					stripped.append(decomposed.charAt(i));
+			}
+			fold = stripped.toString();
+		}
+		return fold;
+	}
+
+	/**
+	 * @return The folds of a page of the Basic Multilingual Plane.
+	 */
+	private String[] page(int p) {
+		String[] page = pages[p];
+		if (page == null) {
+			page = new String[256];
+			for (int c = 0; c < 256; c++) {
+				int cp = p << 8 | c;
+				// a lone surrogate
+				if (!Character.isSurrogate((char) cp))
+					page[c] = fold(cp);
+			}
+			pages[p] = page;
+		}
+		return page;
+	}
+
+	private static boolean isMark(int cp) {
+		int type = Character.getType(cp);
+		return type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK
+						|| type == Character.ENCLOSING_MARK;
+	}
+
+	/**
+	 * @return The word built, its marks composed with the letters they follow
+	 *         so it reads the same however it was written.
+	 */
+	private String word(int n, boolean marked) {
+		String w = new String(word, 0, n);
+		return marked ? Normalizer.normalize(w, Normalizer.Form.NFC) : w;
+	}
+
+	private int append(int n, String s) {
+		if (n + s.length() > word.length)
+			grow(n + s.length());
+		s.getChars(0, s.length(), word, n);
+		return n + s.length();
+	}
+
+	private void grow(int min) {
+		char[] bigger = new char[Math.max(min, word.length * 2)];
+		System.arraycopy(word, 0, bigger, 0, word.length);
+		word = bigger;
+	}
+
+	private static int count(Tokenizer t, String l) {
+		int words = 0;
+		t.reset(l);
+		while (t.next() != null) {
+			words++;
+		}
+		return words;
+	}
+
+	/**
+	 * Counts the words of a line the fastest way that only knows ASCII,
+	 * making the same strings.
+	 */
+	private static int scanAscii(String l, char[] word) {
+		int words = 0;
+		int n = 0;
+		for (int i = 0; i < l.length(); i++) {
+			int c = l.charAt(i) | 0x20;
+			if (c >= 'a' && c <= 'z') {
+				word[n++] = (char) c;
+			}
+			else if (n > 0) {
+				if (new String(word, 0, n) != null)
+					words++;
+				n = 0;
+			}
+		}
+		if (n > 0 && new String(word, 0, n) != null)
+			words++;
+		return words;
+	}
+
+	private static int splitRegex(String l) {
+		int words = 0;
+		for (String part : l.replaceAll("[^a-zA-Z ]", " ").toLowerCase().split("\\s+")) {
+			if (!part.isEmpty())
+				words++;
+		}
+		return words;
+	}
+}
@@ -0,0 +1,242 @@
+// This class holds every distinct term of the parsed documents together with
+// its document frequency and total frequency, so that the counts are gathered
+// in a single pass over the documents instead of once per matrix cell.
+//
+// The vocabulary can be pruned by document frequency and capped to the top
+// terms before the matrix is written.
+
+package edu.bu.sbahr;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class Vocabulary {
+
+	/** Terms in the order they were first seen */
+	protected String[] terms;
+	/** Number of documents each term appears in */
+	protected int[] docFreq;
+	/** Number of times each term appears across all documents */
+	protected long[] totalFreq;
+	/** Hashed bucket of each term, null unless feature hashing */
+	protected int[] buckets;
+	/** Number of terms */
+	protected int size;
+
+	/**
+	 * Construct a new vocabulary
+	 *
+	 * @param terms - the terms
+	 * @param docFreq - the document frequency of each term
+	 * @param totalFreq - the total frequency of each term
+	 * @param size - the number of terms
+	 */
+	public Vocabulary(String[] terms, int[] docFreq, long[] totalFreq, int size) {
+		this.terms = terms;
+		this.docFreq = docFreq;
+		this.totalFreq = totalFreq;
+		this.size = size;
+	}
+
+	/**
+	 * Builds the vocabulary of the given documents.
+	 *
+	 * @param documents - the parsed documents
+	 *
+	 * @return The vocabulary in first seen order.
+	 */
+	public static Vocabulary build(List<Document> documents) {
+		if (Settings.hashBits > 0) {
+			return buildHashed(documents);
+		}
+
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		String[] terms = new String[64];
+		int[] docFreq = new int[64];
+		long[] totalFreq = new long[64];
+		int size = 0;
+
+		for (Document d : documents) {
+			for (Map.Entry<String, Integer> e : d.termFrequency.entrySet()) {
+				Integer id = ids.get(e.getKey());
+				if (id == null) {
+					if (size == terms.length) {
+						terms = Arrays.copyOf(terms, size * 2);
+						docFreq = Arrays.copyOf(docFreq, size * 2);
+						totalFreq = Arrays.copyOf(totalFreq, size * 2);
+					}
+					id = size++;
+					ids.put(e.getKey(), id);
+					terms[id] = e.getKey();
+				}
+				docFreq[id]++;
+				totalFreq[id] += e.getValue();
+			}
+		}
+
+		return new Vocabulary(terms, docFreq, totalFreq, size);
+	}
+
+	/**
+	 * Builds the vocabulary of documents whose terms were hashed into buckets.
+	 * Each used bucket becomes a term named after the bucket.
+	 *
+	 * @param documents - the parsed documents
+	 *
+	 * @return The vocabulary in first seen order.
+	 */
+	private static Vocabulary buildHashed(List<Document> documents) {
+		IntCountMap ids = new IntCountMap(1024);
+		int[] buckets = new int[64];
+		int[] docFreq = new int[64];
+		long[] totalFreq = new long[64];
+		int size = 0;
+
+		for (Document d : documents) {
+			IntCountMap counts = d.featureCounts;
+			for (int slot = 0; slot < counts.capacity(); slot++) {
+				int bucket = counts.keyAt(slot);
+				if (bucket < 0)
+					continue;
+
+				// ids are stored off by one, so 0 means unseen
+				int id = ids.get(bucket) - 1;
+				if (id < 0) {
+					if (size == buckets.length) {
+						buckets = Arrays.copyOf(buckets, size * 2);
+						docFreq = Arrays.copyOf(docFreq, size * 2);
+						totalFreq = Arrays.copyOf(totalFreq, size * 2);
+					}
+					id = size++;
+					ids.add(bucket, id + 1);
+					buckets[id] = bucket;
+				}
+				docFreq[id]++;
+				totalFreq[id] += counts.countAt(slot);
+			}
+		}
+
+		String[] terms = new String[size];
+		for (int t = 0; t < size; t++) {
+			terms[t] = "#" + buckets[t];
+		}
+
+		Vocabulary vocab = new Vocabulary(terms, docFreq, totalFreq, size);
+		vocab.buckets = buckets;
+		return vocab;
+	}
+
+	/**
+	 * Removes the terms that are too rare or too common and caps the
+	 * vocabulary to the highest ranked terms. The order of the remaining terms
+	 * is preserved.
+	 *
+	 * @param numDocs - the number of documents
+	 * @param minDf - the minimum document frequency
+	 * @param maxDf - the maximum document frequency, a proportion if at most 1
+	 * @param maxTerms - the maximum number of terms, 0 for no cap
+	 * @param byTotal - rank by total frequency instead of document frequency
+	 *
+	 * @return The pruned vocabulary.
+	 */
+	public Vocabulary prune(int numDocs, int minDf, double maxDf, int maxTerms, boolean byTotal) {
+		long maxCount = maxDf <= 1.0 ? (long) Math.floor(maxDf * numDocs) : (long) maxDf;
+
+		// terms that pass the document frequency thresholds
+		int[] kept = new int[size];
+		int numKept = 0;
+		for (int t = 0; t < size; t++) {
+			if (docFreq[t] >= minDf && docFreq[t] <= maxCount) {
+				kept[numKept++] = t;
+			}
+		}
+
+		// only keep the terms ranked above the cut off
+		long cutOff = Long.MIN_VALUE;
+		int tiesAllowed = Integer.MAX_VALUE;
+		if (maxTerms > 0 && numKept > maxTerms) {
+			long[] scores = new long[numKept];
+			for (int k = 0; k < numKept; k++) {
+				scores[k] = byTotal ? totalFreq[kept[k]] : docFreq[kept[k]];
+			}
+			cutOff = select(scores, numKept - maxTerms);
+
+			// terms scoring exactly the cut off fill the remaining places
+			int above = 0;
+			for (int k = 0; k < numKept; k++) {
+				long score = byTotal ? totalFreq[kept[k]] : docFreq[kept[k]];
+				if (score > cutOff)
+					above++;
+			}
+			tiesAllowed = maxTerms - above;
+		}
+
+		String[] newTerms = new String[numKept];
+		int[] newDocFreq = new int[numKept];
+		long[] newTotalFreq = new long[numKept];
+		int[] newBuckets = buckets == null ? null : new int[numKept];
+		int newSize = 0;
+		for (int k = 0; k < numKept; k++) {
+			int t = kept[k];
+			long score = byTotal ? totalFreq[t] : docFreq[t];
+			if (score < cutOff)
+				continue;
+			if (score == cutOff) {
+				if (tiesAllowed == 0)
+					continue;
+				tiesAllowed--;
+			}
+			newTerms[newSize] = terms[t];
+			newDocFreq[newSize] = docFreq[t];
+			newTotalFreq[newSize] = totalFreq[t];
+			if (newBuckets != null)
+				newBuckets[newSize] = buckets[t];
+			newSize++;
+		}
+
+		Vocabulary vocab = new Vocabulary(newTerms, newDocFreq, newTotalFreq, newSize);
+		vocab.buckets = newBuckets;
+		return vocab;
+	}
+
+	/**
+	 * Finds the k-th smallest value with a partial quick select, which avoids
+	 * sorting the whole array. The array is reordered.
+	 *
+	 * @param a - the values
+	 * @param k - the zero based rank of the value
+	 *
+	 * @return The k-th smallest value.
+	 */
+	private static long select(long[] a, int k) {
+		int lo = 0;
+		int hi = a.length - 1;
+		while (lo < hi) {
+			long pivot = a[(lo + hi) >>> 1];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (a[i] < pivot)
+					i++;
+				while (a[j] > pivot)
+					j--;
+				if (i <= j) {
+					long tmp = a[i];
+					a[i] = a[j];
+					a[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return a[k];
+		}
+		return a[k];
+	}
+}